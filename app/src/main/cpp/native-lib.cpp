@@ -14,8 +14,14 @@
  * limitations under the License.
  */
 
+#include <errno.h>
+#include <poll.h>
+#include <stdint.h>
+#include <stdio.h>
 #include <termios.h>
+#include <time.h>
 #include <unistd.h>
+#include <sys/ioctl.h>
 #include <sys/types.h>
 #include <sys/stat.h>
 #include <fcntl.h>
@@ -99,115 +105,232 @@ static speed_t getBaudrate(jint baudrate) {
 }
 
 /*
- * Class:     android_serialport_SerialPort
- * Method:    open
- * Signature: (Ljava/lang/String;II)Ljava/io/FileDescriptor;
+ * Flow control modes, which must be kept in sync with the constants in SerialPortConfig.java.
+ */
+#define FLOW_CONTROL_NONE 0
+#define FLOW_CONTROL_HARDWARE 1
+#define FLOW_CONTROL_SOFTWARE 2
+
+/*
+ * Maximum time to wait for pending output to drain before the port is reconfigured. Output may be
+ * held off indefinitely by the device when flow control is enabled.
+ */
+#define DRAIN_TIMEOUT_MS 1000
+
+static void throwException(JNIEnv *env, const char *className, const char *message) {
+    LOGE("%s", message);
+
+    jclass exceptionClass = env->FindClass(className);
+    if (exceptionClass != NULL)
+        env->ThrowNew(exceptionClass, message);
+}
+
+static void throwIOException(JNIEnv *env, const char *operation) {
+    char message[128];
+    snprintf(message, sizeof(message), "%s failed: %s", operation, strerror(errno));
+
+    throwException(env, "java/io/IOException", message);
+}
+
+/*
+ * Returns the current time on the monotonic clock, in milliseconds.
+ */
+static int64_t monotonicTimeMs() {
+    struct timespec now;
+    clock_gettime(CLOCK_MONOTONIC, &now);
+
+    return (int64_t) now.tv_sec * 1000 + now.tv_nsec / 1000000;
+}
+
+/*
+ * Sets or clears O_NONBLOCK on |fd|. Returns whether the flag could be updated, with |errno| set
+ * when it could not.
+ */
+static bool setNonBlocking(int fd, bool nonBlocking) {
+    int flags = fcntl(fd, F_GETFL);
+    if (flags == -1)
+        return false;
+
+    flags = nonBlocking ? (flags | O_NONBLOCK) : (flags & ~O_NONBLOCK);
+    return fcntl(fd, F_SETFL, flags) != -1;
+}
+
+/*
+ * Waits until the output queue of |fd| is empty, for at most |timeoutMs|. Unlike tcdrain(), this
+ * can't block forever when the device holds off output. Returns whether the queue drained; an
+ * exception will have been thrown when it did not.
+ */
+static bool waitForDrain(JNIEnv *env, int fd, int timeoutMs) {
+    int64_t deadlineMs = monotonicTimeMs() + timeoutMs;
+    while (true) {
+        int pending = 0;
+        if (ioctl(fd, TIOCOUTQ, &pending) == -1) {
+            throwIOException(env, "ioctl(TIOCOUTQ)");
+            return false;
+        }
+
+        if (pending == 0)
+            return true;
+
+        if (monotonicTimeMs() >= deadlineMs) {
+            char message[128];
+            snprintf(message, sizeof(message),
+                     "Timed out after %dms with %d bytes of output pending", timeoutMs, pending);
+
+            throwException(env, "java/io/IOException", message);
+            return false;
+        }
+
+        usleep(5000);
+    }
+}
+
+/*
+ * Applies the given configuration to the serial port identified by |fd|. Returns whether the
+ * configuration could be applied; an exception will have been thrown when it could not.
+ */
+static bool configure(JNIEnv *env, int fd, jint baudrate, jint dataBits, jint parity,
+                      jint stopBits, jint flowControl, jint vmin, jint vtime, int when) {
+    speed_t speed = getBaudrate(baudrate);
+    if (speed == (speed_t) -1) {
+        throwException(env, "java/lang/IllegalArgumentException", "Unsupported baud rate");
+        return false;
+    }
+
+    struct termios cfg;
+    LOGD("Configuring serial port");
+    if (tcgetattr(fd, &cfg)) {
+        throwIOException(env, "tcgetattr()");
+        return false;
+    }
+
+    cfmakeraw(&cfg);
+    cfsetispeed(&cfg, speed);
+    cfsetospeed(&cfg, speed);
+
+    cfg.c_cflag |= CLOCAL | CREAD;
+    cfg.c_cflag &= ~CSIZE;
+    switch (dataBits) {
+        case 5:
+            cfg.c_cflag |= CS5;
+            break;
+        case 6:
+            cfg.c_cflag |= CS6;
+            break;
+        case 7:
+            cfg.c_cflag |= CS7;
+            break;
+        case 8:
+            cfg.c_cflag |= CS8;
+            break;
+        default:
+            throwException(env, "java/lang/IllegalArgumentException", "Unsupported data bits");
+            return false;
+    }
+
+    cfg.c_iflag &= ~(IGNPAR | PARMRK | INPCK);
+    switch (parity) {
+        case 0:  // none
+            cfg.c_cflag &= ~(PARENB | PARODD);
+            break;
+        case 1:  // odd
+            cfg.c_iflag |= INPCK;
+            cfg.c_cflag |= PARENB | PARODD;
+            break;
+        case 2:  // even
+            cfg.c_iflag |= INPCK;
+            cfg.c_cflag |= PARENB;
+            cfg.c_cflag &= ~PARODD;
+            break;
+        default:
+            throwException(env, "java/lang/IllegalArgumentException", "Unsupported parity");
+            return false;
+    }
+
+    switch (stopBits) {
+        case 1:
+            cfg.c_cflag &= ~CSTOPB;
+            break;
+        case 2:
+            cfg.c_cflag |= CSTOPB;
+            break;
+        default:
+            throwException(env, "java/lang/IllegalArgumentException", "Unsupported stop bits");
+            return false;
+    }
+
+    cfg.c_cflag &= ~CRTSCTS;
+    cfg.c_iflag &= ~(IXON | IXOFF | IXANY);
+    switch (flowControl) {
+        case FLOW_CONTROL_NONE:
+            break;
+        case FLOW_CONTROL_HARDWARE:
+            cfg.c_cflag |= CRTSCTS;
+            break;
+        case FLOW_CONTROL_SOFTWARE:
+            cfg.c_iflag |= IXON | IXOFF;
+            break;
+        default:
+            throwException(env, "java/lang/IllegalArgumentException", "Unsupported flow control");
+            return false;
+    }
+
+    if (vmin < 0 || vmin > 255 || vtime < 0 || vtime > 255) {
+        throwException(env, "java/lang/IllegalArgumentException", "VMIN and VTIME must be bytes");
+        return false;
+    }
+
+    cfg.c_cc[VMIN] = (cc_t) vmin;
+    cfg.c_cc[VTIME] = (cc_t) vtime;
+
+    if (tcsetattr(fd, when, &cfg)) {
+        throwIOException(env, "tcsetattr()");
+        return false;
+    }
+
+    return true;
+}
+
+/*
+ * Class:     team_animecon_display_SerialPort
+ * Method:    nativeOpen
+ * Signature: (Ljava/lang/String;IIIIIIII)Ljava/io/FileDescriptor;
  */
 extern "C" JNIEXPORT jobject JNICALL Java_team_animecon_display_SerialPort_nativeOpen
         (JNIEnv *env, jobject thiz, jstring path, jint baudrate, jint dataBits,
-         jint parity, jint stopBits, jint flags) {
+         jint parity, jint stopBits, jint flowControl, jint vmin, jint vtime, jint flags) {
 
     int fd;
-    speed_t speed;
     jobject mFileDescriptor;
 
-    /* Check arguments */
-    {
-        speed = getBaudrate(baudrate);
-        if (speed == -1) {
-            /* TODO: throw an exception */
-            LOGE("Invalid baudrate");
-            return NULL;
-        }
-    }
-
     /* Opening device */
     {
         jboolean iscopy;
         const char *path_utf = env->GetStringUTFChars(path, &iscopy);
+        // Open without blocking, as opening a port without CLOCAL set may otherwise block until
+        // the device asserts carrier detect.
         LOGD("Opening serial port %s with flags 0x%x", path_utf, O_RDWR | flags);
-        fd = open(path_utf, O_RDWR | flags);
+        fd = open(path_utf, O_RDWR | O_NOCTTY | O_NONBLOCK | flags);
         LOGD("open() fd = %d", fd);
         env->ReleaseStringUTFChars(path, path_utf);
         if (fd == -1) {
-            /* Throw an exception */
-            LOGE("Cannot open port");
-            /* TODO: throw an exception */
+            throwIOException(env, "open()");
             return NULL;
         }
     }
 
     /* Configure device */
-    {
-        struct termios cfg;
-        LOGD("Configuring serial port");
-        if (tcgetattr(fd, &cfg)) {
-            LOGE("tcgetattr() failed");
-            close(fd);
-            /* TODO: throw an exception */
-            return NULL;
-        }
-
-        cfmakeraw(&cfg);
-        cfsetispeed(&cfg, speed);
-        cfsetospeed(&cfg, speed);
-
-
-        cfg.c_cflag &= ~CSIZE;
-        switch (dataBits) {
-            case 5:
-                cfg.c_cflag |= CS5;    //使用5位数据位
-                break;
-            case 6:
-                cfg.c_cflag |= CS6;    //使用6位数据位
-                break;
-            case 7:
-                cfg.c_cflag |= CS7;    //使用7位数据位
-                break;
-            case 8:
-                cfg.c_cflag |= CS8;    //使用8位数据位
-                break;
-            default:
-                cfg.c_cflag |= CS8;
-                break;
-        }
-
-        switch (parity) {
-            case 0:
-                cfg.c_cflag &= ~PARENB;    //无奇偶校验
-                break;
-            case 1:
-                cfg.c_cflag |= (PARODD | PARENB);   //奇校验
-                break;
-            case 2:
-                cfg.c_iflag &= ~(IGNPAR | PARMRK); // 偶校验
-                cfg.c_iflag |= INPCK;
-                cfg.c_cflag |= PARENB;
-                cfg.c_cflag &= ~PARODD;
-                break;
-            default:
-                cfg.c_cflag &= ~PARENB;
-                break;
-        }
-
-        switch (stopBits) {
-            case 1:
-                cfg.c_cflag &= ~CSTOPB;    //1位停止位
-                break;
-            case 2:
-                cfg.c_cflag |= CSTOPB;    //2位停止位
-                break;
-            default:
-                cfg.c_cflag &= ~CSTOPB;    //1位停止位
-                break;
-        }
+    if (!configure(env, fd, baudrate, dataBits, parity, stopBits, flowControl, vmin, vtime,
+                   TCSANOW)) {
+        close(fd);
+        return NULL;
+    }
 
-        if (tcsetattr(fd, TCSANOW, &cfg)) {
-            LOGE("tcsetattr() failed");
-            close(fd);
-            /* TODO: throw an exception */
-            return NULL;
-        }
+    /* Restore blocking reads, so that VMIN and VTIME apply. Writes are made non-blocking. */
+    if (!(flags & O_NONBLOCK) && !setNonBlocking(fd, false)) {
+        throwIOException(env, "fcntl()");
+        close(fd);
+        return NULL;
     }
 
     /* Create a corresponding file descriptor */
@@ -223,12 +346,9 @@ extern "C" JNIEXPORT jobject JNICALL Java_team_animecon_display_SerialPort_nativ
 }
 
 /*
- * Class:     cedric_serial_SerialPort
- * Method:    close
- * Signature: ()V
+ * Returns the descriptor of the file descriptor stored in the |mFd| member of |thiz|.
  */
-extern "C" JNIEXPORT void JNICALL Java_team_animecon_display_SerialPort_nativeClose
-        (JNIEnv *env, jobject thiz) {
+static jint getDescriptor(JNIEnv *env, jobject thiz) {
     jclass SerialPortClass = env->GetObjectClass(thiz);
     jclass FileDescriptorClass = env->FindClass("java/io/FileDescriptor");
 
@@ -236,7 +356,101 @@ extern "C" JNIEXPORT void JNICALL Java_team_animecon_display_SerialPort_nativeCl
     jfieldID descriptorID = env->GetFieldID(FileDescriptorClass, "descriptor", "I");
 
     jobject mFd = env->GetObjectField(thiz, mFdID);
-    jint descriptor = env->GetIntField(mFd, descriptorID);
+    return env->GetIntField(mFd, descriptorID);
+}
+
+/*
+ * Class:     team_animecon_display_SerialPort
+ * Method:    nativeConfigure
+ * Signature: (IIIIIII)V
+ */
+extern "C" JNIEXPORT void JNICALL Java_team_animecon_display_SerialPort_nativeConfigure
+        (JNIEnv *env, jobject thiz, jint baudrate, jint dataBits, jint parity, jint stopBits,
+         jint flowControl, jint vmin, jint vtime) {
+    jint descriptor = getDescriptor(env, thiz);
+
+    // Let pending output drain at the current settings before switching, so that a command that
+    // announces a new baud rate to the strip is sent at the rate the strip is still listening at.
+    // The queue is drained with a timeout first, as TCSADRAIN would wait indefinitely.
+    LOGD("configure(fd = %d, baudrate = %d)", descriptor, baudrate);
+    if (!waitForDrain(env, descriptor, DRAIN_TIMEOUT_MS))
+        return;
+
+    configure(env, descriptor, baudrate, dataBits, parity, stopBits, flowControl, vmin, vtime,
+              TCSADRAIN);
+}
+
+/*
+ * Class:     team_animecon_display_SerialPort
+ * Method:    nativeWrite
+ * Signature: ([BI)V
+ *
+ * Writes all of |data| to the serial port within |timeoutMs|. The descriptor is non-blocking for
+ * the duration of the write, and poll() waits for room in the output buffer when it's full, which
+ * happens when the device holds off output through flow control.
+ */
+extern "C" JNIEXPORT void JNICALL Java_team_animecon_display_SerialPort_nativeWrite
+        (JNIEnv *env, jobject thiz, jbyteArray data, jint timeoutMs) {
+    jint descriptor = getDescriptor(env, thiz);
+    if (!setNonBlocking(descriptor, true)) {
+        throwIOException(env, "fcntl()");
+        return;
+    }
+
+    jsize length = env->GetArrayLength(data);
+    jbyte *bytes = env->GetByteArrayElements(data, NULL);
+    if (bytes == NULL) {
+        setNonBlocking(descriptor, false);
+        return;  // an OutOfMemoryError has been thrown
+    }
+
+    int64_t deadlineMs = monotonicTimeMs() + timeoutMs;
+    jsize written = 0;
+
+    while (written < length) {
+        ssize_t result = write(descriptor, bytes + written, (size_t) (length - written));
+        if (result > 0) {
+            written += (jsize) result;
+            continue;
+        }
+
+        if (result == -1 && errno != EAGAIN && errno != EWOULDBLOCK && errno != EINTR) {
+            throwIOException(env, "write()");
+            break;
+        }
+
+        int remainingMs = (int) (deadlineMs - monotonicTimeMs());
+        if (remainingMs <= 0) {
+            char message[128];
+            snprintf(message, sizeof(message), "Timed out after %dms with %d of %d bytes written",
+                     timeoutMs, (int) written, (int) length);
+
+            throwException(env, "java/io/IOException", message);
+            break;
+        }
+
+        struct pollfd pollDescriptor = { descriptor, POLLOUT, 0 };
+        if (poll(&pollDescriptor, 1, remainingMs) == -1 && errno != EINTR) {
+            throwIOException(env, "poll()");
+            break;
+        }
+    }
+
+    env->ReleaseByteArrayElements(data, bytes, JNI_ABORT);
+
+    // Restore blocking reads. An exception thrown by the write takes precedence.
+    if (!setNonBlocking(descriptor, false) && !env->ExceptionCheck())
+        throwIOException(env, "fcntl()");
+}
+
+/*
+ * Class:     cedric_serial_SerialPort
+ * Method:    close
+ * Signature: ()V
+ */
+extern "C" JNIEXPORT void JNICALL Java_team_animecon_display_SerialPort_nativeClose
+        (JNIEnv *env, jobject thiz) {
+    jint descriptor = getDescriptor(env, thiz);
 
     LOGD("close(fd = %d)", descriptor);
     close(descriptor);
@@ -0,0 +1,336 @@
+// Copyright 2024 Peter Beverloo & AnimeCon. All rights reserved.
+// Use of this source code is governed by a MIT license that can be found in the LICENSE file.
+
+package team.animecon.display;
+
+import android.content.Context;
+import android.hardware.Sensor;
+import android.hardware.SensorEvent;
+import android.hardware.SensorEventListener;
+import android.hardware.SensorManager;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.util.Log;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * The `AutoBrightnessController` adjusts the display's brightness to the ambient light, as reported
+ * by the light sensor. Readings are batched by the sensor hub, and processed on a background
+ * thread: they are smoothed in the logarithmic domain, which matches how brightness is perceived,
+ * and then mapped to a brightness level through a configurable curve.
+ *
+ * Hysteresis avoids flickering between levels when the ambient light hovers around a boundary,
+ * and levels are quantized so that the brightness setting is only written when the change would
+ * be perceptible. The `BrightnessController`'s minimum brightness is respected.
+ */
+public class AutoBrightnessController implements WebMessageListener.AutoBrightnessDelegate {
+    private static final String TAG = "AutoBrightnessController";
+
+    /**
+     * Rate at which the sensor will be sampled, and the maximum latency with which batched samples
+     * will be reported. Batching allows the application processor to sleep between reports.
+     */
+    private static final int SAMPLING_PERIOD_US = 1_000_000;
+    private static final int MAX_REPORT_LATENCY_US = 10_000_000;
+
+    /**
+     * Time constant of the exponential moving average applied to the readings.
+     */
+    private static final double SMOOTHING_TIME_CONSTANT_NS = 5_000_000_000.0;
+
+    /**
+     * Change in smoothed log-lux required before a new level will be considered. 0.2 corresponds
+     * with a change in ambient light of about 20%.
+     */
+    private static final double HYSTERESIS_LOG_LUX = 0.2;
+
+    /**
+     * Granularity of brightness levels. Smaller changes are not perceptible.
+     */
+    private static final int LEVEL_STEP = 8;
+
+    /**
+     * The default curve, mapping ambient light in lux to a brightness level.
+     */
+    private static final int[] DEFAULT_CURVE_LUX = new int[] { 0, 10, 100, 1000, 10000 };
+    private static final int[] DEFAULT_CURVE_LEVELS = new int[] { 16, 48, 96, 176, 255 };
+
+    /**
+     * The controller through which the brightness will be updated.
+     */
+    private final BrightnessController mBrightnessController;
+
+    /**
+     * The sensor manager and the light sensor, which is NULL when the device doesn't have one.
+     */
+    private final SensorManager mSensorManager;
+    private final Sensor mSensor;
+
+    /**
+     * Background thread on which readings will be processed, created when first listening.
+     */
+    private Handler mHandler;
+
+    private final SensorEventListener mListener = new SensorEventListener() {
+        @Override
+        public void onSensorChanged(SensorEvent event) {
+            AutoBrightnessController.this.onReading(event.values[0], event.timestamp);
+        }
+
+        @Override
+        public void onAccuracyChanged(Sensor sensor, int accuracy) {}
+    };
+
+    /**
+     * State of the controller. Guarded by `this`, as readings are processed on a background thread.
+     */
+    private boolean mEnabled = false;
+    private boolean mSuspended = false;
+    private boolean mListening = false;
+
+    private int[] mCurveLux = DEFAULT_CURVE_LUX;
+    private int[] mCurveLevels = DEFAULT_CURVE_LEVELS;
+
+    /**
+     * Filter state: the latest reading, the smoothed log-lux and the time of the last reading, and
+     * the smoothed log-lux at which the current level was decided upon.
+     */
+    private float mLux = -1;
+    private double mSmoothedLogLux = Double.NaN;
+    private long mLastReadingTimeNs = 0;
+    private double mLevelLogLux = Double.NaN;
+
+    /**
+     * The level that was last written, and statistics about the number of readings and writes.
+     */
+    private int mLevel = -1;
+    private int mReadingCount = 0;
+    private int mWriteCount = 0;
+
+    public AutoBrightnessController(Context context, BrightnessController brightnessController) {
+        this.mBrightnessController = brightnessController;
+        this.mSensorManager = (SensorManager) context.getSystemService(Context.SENSOR_SERVICE);
+        this.mSensor = this.mSensorManager != null
+                ? this.mSensorManager.getDefaultSensor(Sensor.TYPE_LIGHT) : null;
+    }
+
+    /**
+     * Returns whether the device has a light sensor, which is required for auto brightness.
+     */
+    public boolean isAvailable() {
+        return this.mSensor != null;
+    }
+
+    /**
+     * Returns whether auto brightness has been enabled.
+     */
+    public synchronized boolean isEnabled() {
+        return this.mEnabled;
+    }
+
+    /**
+     * Enables or disables auto brightness. Returns false when no light sensor is available.
+     */
+    @Override
+    public synchronized boolean setEnabled(boolean enabled) {
+        if (enabled && !this.isAvailable())
+            return false;
+
+        this.mEnabled = enabled;
+        this.updateListening();
+        return true;
+    }
+
+    /**
+     * Suspends or resumes auto brightness without changing whether it's enabled, for example while
+     * the display is idle. The sensor is not read while suspended.
+     */
+    public synchronized void setSuspended(boolean suspended) {
+        this.mSuspended = suspended;
+        this.updateListening();
+    }
+
+    /**
+     * Updates the curve to map the ambient light levels in `lux` to the brightness `levels`. The
+     * light levels must be strictly increasing, and at least two points are required.
+     */
+    @Override
+    public synchronized boolean setCurve(int[] lux, int[] levels) {
+        if (!isValidCurve(lux, levels))
+            return false;
+
+        this.mCurveLux = lux.clone();
+        this.mCurveLevels = levels.clone();
+
+        // Force the next reading to decide on a level based on the new curve.
+        this.mLevelLogLux = Double.NaN;
+        return true;
+    }
+
+    /**
+     * Returns the state of auto brightness as JSON.
+     */
+    @Override
+    public synchronized JSONObject toJson() throws JSONException {
+        JSONObject result = new JSONObject();
+        result.put("available", this.isAvailable());
+        result.put("enabled", this.mEnabled);
+        result.put("suspended", this.mSuspended);
+
+        StringBuilder curve = new StringBuilder();
+        for (int index = 0; index < this.mCurveLux.length; ++index) {
+            if (index > 0)
+                curve.append(',');
+            curve.append(this.mCurveLux[index]).append('=').append(this.mCurveLevels[index]);
+        }
+        result.put("curve", curve.toString());
+
+        if (this.mLux >= 0)
+            result.put("lux", this.mLux);
+        if (!Double.isNaN(this.mSmoothedLogLux))
+            result.put("smoothedLux", Math.expm1(this.mSmoothedLogLux));
+        if (this.mLevel >= 0)
+            result.put("level", this.mLevel);
+
+        result.put("readings", this.mReadingCount);
+        result.put("writes", this.mWriteCount);
+        return result;
+    }
+
+    /**
+     * Returns whether the `lux` and `levels` describe a valid curve.
+     */
+    static boolean isValidCurve(int[] lux, int[] levels) {
+        if (lux.length < 2 || lux.length != levels.length)
+            return false;
+
+        for (int index = 0; index < lux.length; ++index) {
+            if (lux[index] < 0 || levels[index] < 0 || levels[index] > 255)
+                return false;
+            if (index > 0 && lux[index] <= lux[index - 1])
+                return false;
+        }
+
+        return true;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Starts listening to the light sensor on the background thread.
+     */
+    private void startListening() {
+        if (this.mHandler == null) {
+            HandlerThread thread = new HandlerThread(TAG);
+            thread.start();
+
+            this.mHandler = new Handler(thread.getLooper());
+        }
+
+        this.mSensorManager.registerListener(this.mListener, this.mSensor, SAMPLING_PERIOD_US,
+                MAX_REPORT_LATENCY_US, this.mHandler);
+    }
+
+    /**
+     * Stops listening to the light sensor.
+     */
+    private void stopListening() {
+        this.mSensorManager.unregisterListener(this.mListener);
+    }
+
+    /**
+     * Starts or stops listening to the sensor depending on the state of the controller. The filter
+     * is reset when listening starts, as earlier readings are no longer representative, and so is
+     * the level, as the brightness may have been changed by others in the meantime.
+     */
+    private void updateListening() {
+        boolean listening = this.mEnabled && !this.mSuspended;
+        if (listening == this.mListening)
+            return;
+
+        this.mListening = listening;
+        if (listening) {
+            this.mSmoothedLogLux = Double.NaN;
+            this.mLevelLogLux = Double.NaN;
+            this.mLevel = -1;
+            this.startListening();
+        } else {
+            this.stopListening();
+        }
+    }
+
+    /**
+     * Processes a reading of `lux` taken at `timestampNs`. Runs on the background thread, and may
+     * be called for a batch of readings in quick succession.
+     */
+    private synchronized void onReading(float lux, long timestampNs) {
+        if (!this.mListening)
+            return;  // a batched reading delivered after listening stopped
+
+        double logLux = Math.log1p(Math.max(0, lux));
+
+        this.mLux = lux;
+        this.mReadingCount++;
+
+        // The filter's weight depends on the time between readings, so that it behaves the same
+        // regardless of whether readings were batched, or the sensor only reports on change.
+        if (Double.isNaN(this.mSmoothedLogLux)) {
+            this.mSmoothedLogLux = logLux;
+        } else {
+            long elapsedNs = Math.max(0, timestampNs - this.mLastReadingTimeNs);
+            double alpha = 1 - Math.exp(-elapsedNs / SMOOTHING_TIME_CONSTANT_NS);
+
+            this.mSmoothedLogLux += alpha * (logLux - this.mSmoothedLogLux);
+        }
+
+        this.mLastReadingTimeNs = timestampNs;
+
+        if (!Double.isNaN(this.mLevelLogLux) &&
+                Math.abs(this.mSmoothedLogLux - this.mLevelLogLux) < HYSTERESIS_LOG_LUX) {
+            return;
+        }
+
+        this.mLevelLogLux = this.mSmoothedLogLux;
+
+        int level = this.computeLevel(this.mSmoothedLogLux);
+        if (level == this.mLevel)
+            return;
+
+        if (this.mBrightnessController.update(level)) {
+            Log.i(TAG, "Updating brightness to " + level + " for " + lux + " lux");
+            this.mLevel = level;
+            this.mWriteCount++;
+        }
+    }
+
+    /**
+     * Maps the `logLux` to a quantized brightness level by interpolating between the points on the
+     * curve in the logarithmic domain. The level won't go below the minimum brightness.
+     */
+    private int computeLevel(double logLux) {
+        int[] lux = this.mCurveLux;
+        int[] levels = this.mCurveLevels;
+
+        double level = levels[levels.length - 1];
+        if (logLux <= Math.log1p(lux[0])) {
+            level = levels[0];
+        } else {
+            for (int index = 1; index < lux.length; ++index) {
+                double upperLogLux = Math.log1p(lux[index]);
+                if (logLux > upperLogLux)
+                    continue;
+
+                double lowerLogLux = Math.log1p(lux[index - 1]);
+                double fraction = (logLux - lowerLogLux) / (upperLogLux - lowerLogLux);
+
+                level = levels[index - 1] + fraction * (levels[index] - levels[index - 1]);
+                break;
+            }
+        }
+
+        int quantized = Math.min(255, (int) Math.round(level / LEVEL_STEP) * LEVEL_STEP);
+        return Math.max(this.mBrightnessController.getMinimumBrightness(), quantized);
+    }
+}
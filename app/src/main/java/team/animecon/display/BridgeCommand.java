@@ -0,0 +1,626 @@
+// Copyright 2024 Peter Beverloo & AnimeCon. All rights reserved.
+// Use of this source code is governed by a MIT license that can be found in the LICENSE file.
+
+package team.animecon.display;
+
+import java.util.Arrays;
+
+/**
+ * A parsed bridge command: the action a message asks for, and its arguments. Parsing is separated
+ * from execution, so that the grammar can be exercised without any of the controllers, and has no
+ * dependencies on Android. The `WebMessageListener` executes the parsed actions.
+ *
+ * Instances are reused between messages, and thus are not thread safe.
+ */
+public final class BridgeCommand {
+    /**
+     * Actions that can be parsed from a message. ACTION_INVALID is accompanied by an error.
+     */
+    public static final int ACTION_INVALID = 0;
+    public static final int ACTION_AUTO_BRIGHTNESS_CURVE = 1;  // int[] lux, int[] levels
+    public static final int ACTION_AUTO_BRIGHTNESS_GET = 2;
+    public static final int ACTION_AUTO_BRIGHTNESS_OFF = 3;
+    public static final int ACTION_AUTO_BRIGHTNESS_ON = 4;
+    public static final int ACTION_BRIGHTNESS_GET = 5;
+    public static final int ACTION_BRIGHTNESS_SET = 6;  // brightness
+    public static final int ACTION_FRAMES_DISABLE = 7;
+    public static final int ACTION_FRAMES_ENABLE = 8;
+    public static final int ACTION_FRAMES_GET = 9;
+    public static final int ACTION_FRAMES_RESET = 10;
+    public static final int ACTION_IDLE_AUTO = 11;
+    public static final int ACTION_IDLE_ENTER = 12;
+    public static final int ACTION_IDLE_EXIT = 13;
+    public static final int ACTION_IDLE_GET = 14;
+    public static final int ACTION_IDLE_SCHEDULE = 15;  // start minute, end minute
+    public static final int ACTION_IP = 16;
+    public static final int ACTION_KIOSK_DISABLE = 17;
+    public static final int ACTION_KIOSK_ENABLE = 18;
+    public static final int ACTION_LIGHT_CANCEL = 19;
+    public static final int ACTION_LIGHT_CLOSE = 20;
+    public static final int ACTION_LIGHT_OPEN = 21;
+    public static final int ACTION_LIGHT_SCHEDULE = 22;  // server time, text
+    public static final int ACTION_LIGHT_SEND = 23;  // text
+    public static final int ACTION_LIGHT_SET = 24;  // red, green, blue
+    public static final int ACTION_LIGHT_STATUS = 25;
+    public static final int ACTION_RECORD_GET = 26;
+    public static final int ACTION_RECORD_START = 27;
+    public static final int ACTION_RECORD_STOP = 28;
+    public static final int ACTION_REPLAY_GET = 29;
+    public static final int ACTION_REPLAY_START = 30;  // simulated, text, speed
+    public static final int ACTION_SERIAL_BAUD = 31;  // baud rate
+    public static final int ACTION_SERIAL_GET = 32;
+    public static final int ACTION_SERIAL_SET = 33;  // the seven SerialPortConfig values
+    public static final int ACTION_SYNC_GET = 34;
+    public static final int ACTION_SYNC_PING = 35;
+    public static final int ACTION_SYNC_RESET = 36;
+    public static final int ACTION_SYNC_SAMPLE = 37;  // send, host and receive time
+    public static final int ACTION_VOLUME_GET = 38;
+    public static final int ACTION_VOLUME_SET = 39;  // volume
+    public static final int ACTION_WEBVIEW_GET = 40;
+
+    /**
+     * Maximum number of numeric arguments of an action.
+     */
+    private static final int MAX_VALUES = 7;
+
+    /**
+     * The parsed action, and the error message when the action is ACTION_INVALID.
+     */
+    private int mAction = ACTION_INVALID;
+    private String mError = null;
+
+    /**
+     * Arguments of the parsed action. Which of them are set depends on the action.
+     */
+    private final long[] mValues = new long[MAX_VALUES];
+    private String mText = null;
+    private double mSpeed = 0;
+    private int[] mCurveLux = null;
+    private int[] mCurveLevels = null;
+
+    /**
+     * Returns the parsed action, one of the ACTION_* constants.
+     */
+    public int getAction() {
+        return this.mAction;
+    }
+
+    /**
+     * Returns the error that should be shared with JavaScript when the action is ACTION_INVALID.
+     */
+    public String getError() {
+        return this.mError;
+    }
+
+    /**
+     * Returns the numeric argument at the given `index`.
+     */
+    public int getInt(int index) {
+        return (int) this.mValues[index];
+    }
+
+    /**
+     * Returns the numeric argument at the given `index`, for arguments that are times.
+     */
+    public long getLong(int index) {
+        return this.mValues[index];
+    }
+
+    /**
+     * Returns the textual argument: a light command, or the name of a recording.
+     */
+    public String getText() {
+        return this.mText;
+    }
+
+    /**
+     * Returns the replay speed. Zero means that the recording should be replayed at maximum speed.
+     */
+    public double getSpeed() {
+        return this.mSpeed;
+    }
+
+    /**
+     * Returns the lux values and brightness levels of an auto brightness curve's points.
+     */
+    public int[] getCurveLux() {
+        return this.mCurveLux;
+    }
+
+    public int[] getCurveLevels() {
+        return this.mCurveLevels;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Parses the given `message` into the `command` using the `parser`. Returns whether a valid
+     * action was parsed; the command's error describes why not otherwise.
+     */
+    public static boolean parse(CommandParser parser, String message, BridgeCommand command) {
+        command.clear();
+        switch (parser.reset(message)) {
+            case CommandParser.OP_BRIGHTNESS:
+                return parseBrightness(parser, command);
+            case CommandParser.OP_FRAMES:
+                return parseFrames(parser, command);
+            case CommandParser.OP_IDLE:
+                return parseIdle(parser, command);
+            case CommandParser.OP_IP:
+                return parseIp(parser, command);
+            case CommandParser.OP_KIOSK:
+                return parseKiosk(parser, command);
+            case CommandParser.OP_LIGHT:
+                return parseLight(parser, command);
+            case CommandParser.OP_LIGHTSET:
+                return parseLightSet(parser, command);
+            case CommandParser.OP_RECORD:
+                return parseRecord(parser, command);
+            case CommandParser.OP_REPLAY:
+                return parseReplay(parser, command);
+            case CommandParser.OP_SERIAL:
+                return parseSerial(parser, command);
+            case CommandParser.OP_SYNC:
+                return parseSync(parser, command);
+            case CommandParser.OP_VOLUME:
+                return parseVolume(parser, command);
+            case CommandParser.OP_WEBVIEW:
+                return parseWebView(parser, command);
+            default:
+                return command.fail("error:Invalid command");
+        }
+    }
+
+    /**
+     * Parses brightness commands. The following commands are supported:
+     * - auto:{on,off,get}                      Enables or disables auto brightness, and returns its
+     *                                          state as JSON.
+     * - auto:curve:{lux}={0-255}[,...]         Updates the auto brightness curve, and returns the
+     *                                          state as JSON.
+     * - get                                    Returns the device's current brightness level.
+     * - {0-255}                                Updates the device's brightness to the given value,
+     *                                          which disables auto brightness. While idle, the
+     *                                          value will be applied once the display wakes up.
+     */
+    static boolean parseBrightness(CommandParser parser, BridgeCommand command) {
+        if (parser.isRest("get"))
+            return command.succeed(ACTION_BRIGHTNESS_GET);
+
+        if (parser.consumeToken("auto"))
+            return parseAutoBrightness(parser, command);
+
+        int brightness = parser.parseInt();
+        if (brightness < 0 || !parser.atEnd())
+            return command.fail("error:Invalid brightness command");
+
+        if (brightness > 255)
+            return command.fail("error:Invalid brightness command (out of bounds");
+
+        return command.succeed(ACTION_BRIGHTNESS_SET, brightness);
+    }
+
+    /**
+     * Parses auto brightness commands. Curves are validated when they are applied.
+     */
+    private static boolean parseAutoBrightness(CommandParser parser, BridgeCommand command) {
+        if (parser.isRest("on"))
+            return command.succeed(ACTION_AUTO_BRIGHTNESS_ON);
+        if (parser.isRest("off"))
+            return command.succeed(ACTION_AUTO_BRIGHTNESS_OFF);
+        if (parser.isRest("get"))
+            return command.succeed(ACTION_AUTO_BRIGHTNESS_GET);
+
+        if (!parser.consumeToken("curve"))
+            return command.fail("error:Invalid brightness command");
+
+        int[] lux = new int[4];
+        int[] levels = new int[4];
+        int points = 0;
+
+        do {
+            int pointLux = parser.parseInt();
+            int pointLevel = parser.consume('=') ? parser.parseInt() : -1;
+            if (pointLux < 0 || pointLevel < 0)
+                return command.fail("error:Invalid brightness command (needs lux=level pairs)");
+
+            if (points == lux.length) {
+                lux = Arrays.copyOf(lux, points * 2);
+                levels = Arrays.copyOf(levels, points * 2);
+            }
+
+            lux[points] = pointLux;
+            levels[points] = pointLevel;
+            points++;
+        } while (parser.consume(','));
+
+        if (!parser.atEnd())
+            return command.fail("error:Invalid brightness command (invalid curve)");
+
+        command.mCurveLux = Arrays.copyOf(lux, points);
+        command.mCurveLevels = Arrays.copyOf(levels, points);
+        return command.succeed(ACTION_AUTO_BRIGHTNESS_CURVE);
+    }
+
+    /**
+     * Parses frame timing commands. The following commands are supported:
+     * - disable    Stops monitoring the main thread's frame timing.
+     * - enable     Starts monitoring the main thread's frame timing.
+     * - get        Returns the collected frame timing statistics as a JSON object.
+     * - reset      Discards all collected frame timing statistics.
+     */
+    static boolean parseFrames(CommandParser parser, BridgeCommand command) {
+        if (parser.isRest("disable"))
+            return command.succeed(ACTION_FRAMES_DISABLE);
+        if (parser.isRest("enable"))
+            return command.succeed(ACTION_FRAMES_ENABLE);
+        if (parser.isRest("get"))
+            return command.succeed(ACTION_FRAMES_GET);
+        if (parser.isRest("reset"))
+            return command.succeed(ACTION_FRAMES_RESET);
+
+        return command.fail("error:Invalid frames command");
+    }
+
+    /**
+     * Parses idle mode commands. The following commands are supported:
+     * - auto                     Follows the schedule again, removing any override.
+     * - enter                    Enters idle mode until the next transition in the schedule.
+     * - exit                     Leaves idle mode until the next transition in the schedule.
+     * - get                      Returns the idle mode's state and time spent per mode as JSON.
+     * - schedule:{HH:MM-HH:MM}   Updates the schedule. Equal times disable the schedule.
+     */
+    static boolean parseIdle(CommandParser parser, BridgeCommand command) {
+        if (parser.isRest("auto"))
+            return command.succeed(ACTION_IDLE_AUTO);
+        if (parser.isRest("enter"))
+            return command.succeed(ACTION_IDLE_ENTER);
+        if (parser.isRest("exit"))
+            return command.succeed(ACTION_IDLE_EXIT);
+        if (parser.isRest("get"))
+            return command.succeed(ACTION_IDLE_GET);
+
+        if (!parser.consumeToken("schedule"))
+            return command.fail("error:Invalid idle command");
+
+        int startMinute = parseTime(parser);
+        if (startMinute >= 0 && parser.consume('-')) {
+            int endMinute = parseTime(parser);
+            if (endMinute >= 0 && parser.atEnd())
+                return command.succeed(ACTION_IDLE_SCHEDULE, startMinute, endMinute);
+        }
+
+        return command.fail("error:Invalid idle command (needs HH:MM-HH:MM)");
+    }
+
+    /**
+     * Parses a time in HH:MM format from the `parser` to minutes since midnight. Returns -1 when
+     * the time is invalid.
+     */
+    private static int parseTime(CommandParser parser) {
+        int hours = parser.parseInt();
+        if (hours < 0 || hours > 23 || !parser.consume(':'))
+            return -1;
+
+        int minutes = parser.parseInt();
+        if (minutes < 0 || minutes > 59)
+            return -1;
+
+        return hours * 60 + minutes;
+    }
+
+    /**
+     * Parses the ip command, which outputs the local IP addresses and takes no arguments.
+     */
+    static boolean parseIp(CommandParser parser, BridgeCommand command) {
+        if (!parser.atEnd())
+            return command.fail("error:Invalid ip command");
+
+        return command.succeed(ACTION_IP);
+    }
+
+    /**
+     * Parses kiosk commands. The following commands are supported:
+     * - disable          Disables kiosk mode's task lockdown on the current device.
+     * - enable           Enables kiosk mode's task lockdown on the current device.
+     */
+    static boolean parseKiosk(CommandParser parser, BridgeCommand command) {
+        if (parser.isRest("disable"))
+            return command.succeed(ACTION_KIOSK_DISABLE);
+        if (parser.isRest("enable"))
+            return command.succeed(ACTION_KIOSK_ENABLE);
+
+        return command.fail("error:Invalid kiosk command");
+    }
+
+    /**
+     * Parses light commands. Commands other than those of the bridge itself are sent to the strip
+     * verbatim. The following commands are supported:
+     * - open                                     Opens the serial connection with the light.
+     * - close                                    Closes the serial connection with the light.
+     * - status                                   Returns the status of the serial link as JSON.
+     * - at:{serverTimeMs}:{command}              Sends the strip command at the given server time.
+     * - cancel                                   Cancels all commands that have been scheduled.
+     * - LIVE:{RED,GREEN,BLUE}:{SECONDS}          Enable the "live" mode for the given colour.
+     * - KEEP:{RED,GREEN,BLUE}:{SECONDS}:{0-255}  Enable the "keep" mode for the given colour.
+     * - CRAZY:{SECONDS}                          Enable the "crazy" mode.
+     * - FLASH:{SECONDS}                          Enable the "flash" mode.
+     * - CLOSE:{RED,GREEN,BLUE}                   Shuts off the given colour(s) entirely.
+     */
+    static boolean parseLight(CommandParser parser, BridgeCommand command) {
+        if (parser.isRest("open"))
+            return command.succeed(ACTION_LIGHT_OPEN);
+        if (parser.isRest("close"))
+            return command.succeed(ACTION_LIGHT_CLOSE);
+        if (parser.isRest("status"))
+            return command.succeed(ACTION_LIGHT_STATUS);
+        if (parser.consumeToken("at"))
+            return parseLightSchedule(parser, command);
+        if (parser.isRest("cancel"))
+            return command.succeed(ACTION_LIGHT_CANCEL);
+
+        command.mText = parser.rest();
+        return command.succeed(ACTION_LIGHT_SEND);
+    }
+
+    /**
+     * Parses a light command that should be sent at a given server time. Only commands for the
+     * strip itself can be scheduled, as the bridge's own commands would be sent verbatim.
+     */
+    private static boolean parseLightSchedule(CommandParser parser, BridgeCommand command) {
+        long serverTimeMs = parser.parseLong();
+        if (serverTimeMs < 0 || !parser.consume(':') || parser.atEnd())
+            return command.fail("error:Invalid light command (needs time and command)");
+
+        if (parser.isRest("open") || parser.isRest("close") || parser.isRest("status") ||
+                parser.isRest("cancel") || parser.consumeToken("at")) {
+            return command.fail(
+                    "error:Invalid light command (only strip commands can be scheduled)");
+        }
+
+        command.mText = parser.rest();
+        return command.succeed(ACTION_LIGHT_SCHEDULE, serverTimeMs);
+    }
+
+    /**
+     * Parses the lightset command, which sets the lights to a predefined value. Singular command
+     * that results in multiple commands to be issued over the serial port for improved performance.
+     *
+     * - {0-255},{0-255},{0-255}   Updates the light strip's colour to the given R, G, B
+     */
+    static boolean parseLightSet(CommandParser parser, BridgeCommand command) {
+        int red = parser.parseInt();
+        if (red < 0)
+            return command.fail("error:Invalid light command (odd number)");
+        if (!parser.consume(','))
+            return command.fail("error:Invalid light command (needs rgb)");
+
+        int green = parser.parseInt();
+        if (green < 0)
+            return command.fail("error:Invalid light command (odd number)");
+        if (!parser.consume(','))
+            return command.fail("error:Invalid light command (needs rgb)");
+
+        int blue = parser.parseInt();
+        if (blue < 0)
+            return command.fail("error:Invalid light command (odd number)");
+        if (!parser.atEnd())
+            return command.fail("error:Invalid light command (needs rgb)");
+
+        if (red > 255 || green > 255 || blue > 255)
+            return command.fail("error:Invalid light command (out of bounds)");
+
+        return command.succeed(ACTION_LIGHT_SET, red, green, blue);
+    }
+
+    /**
+     * Parses bridge recording commands. The following commands are supported:
+     * - get        Returns the recorder's state and the available recordings as JSON.
+     * - start      Starts recording all bridge traffic to a new recording.
+     * - stop       Stops recording bridge traffic.
+     */
+    static boolean parseRecord(CommandParser parser, BridgeCommand command) {
+        if (parser.isRest("get"))
+            return command.succeed(ACTION_RECORD_GET);
+        if (parser.isRest("start"))
+            return command.succeed(ACTION_RECORD_START);
+        if (parser.isRest("stop"))
+            return command.succeed(ACTION_RECORD_STOP);
+
+        return command.fail("error:Invalid record command");
+    }
+
+    /**
+     * Parses bridge replay commands. The following commands are supported:
+     * - get                            Returns the state or result of the last replay as JSON.
+     * - {name}:{speed}[:simulated]     Replays the named recording against fake controllers, or
+     *                                  simulated ones that mimic the hardware's timing. The speed
+     *                                  is a multiplier of the original pace, or "max".
+     */
+    static boolean parseReplay(CommandParser parser, BridgeCommand command) {
+        if (parser.isRest("get"))
+            return command.succeed(ACTION_REPLAY_GET);
+
+        String name = parser.nextToken();
+        if (name.isEmpty() || parser.atEnd())
+            return command.fail("error:Invalid replay command (needs name and speed)");
+
+        double speed = 0;
+        if (!parser.consumeToken("max")) {
+            try {
+                speed = Double.parseDouble(parser.nextToken());
+            } catch (NumberFormatException e) {
+                return command.fail("error:Invalid replay command (invalid speed)");
+            }
+
+            if (speed <= 0)
+                return command.fail("error:Invalid replay command (invalid speed)");
+        }
+
+        boolean simulated = false;
+        if (!parser.atEnd()) {
+            if (!parser.isRest("simulated"))
+                return command.fail("error:Invalid replay command (needs name and speed)");
+
+            simulated = true;
+        }
+
+        command.mText = name;
+        command.mSpeed = speed;
+        return command.succeed(ACTION_REPLAY_START, simulated ? 1 : 0);
+    }
+
+    /**
+     * Parses serial port commands for the light strip. The following commands are supported:
+     * - get                  Returns the serial port's configuration as JSON.
+     * - baud:{rate}          Switches the baud rate, retaining the other settings.
+     * - set:{baud}:{data}:{none,odd,even}:{stop}:{none,hardware,software}:{vmin}:{vtime}
+     *                        Replaces the serial port's configuration entirely.
+     *
+     * The values of a full configuration are stored in the order of `SerialPortConfig`'s
+     * constructor.
+     */
+    static boolean parseSerial(CommandParser parser, BridgeCommand command) {
+        if (parser.isRest("get"))
+            return command.succeed(ACTION_SERIAL_GET);
+
+        if (parser.consumeToken("baud")) {
+            int baudRate = parser.parseInt();
+            if (baudRate < 0 || !parser.atEnd())
+                return command.fail("error:Invalid serial command (needs baud rate)");
+
+            return command.succeed(ACTION_SERIAL_BAUD, baudRate);
+        }
+
+        if (!parser.consumeToken("set"))
+            return command.fail("error:Invalid serial command");
+
+        int baudRate = parser.parseInt();
+        int dataBits = parser.consume(':') ? parser.parseInt() : -1;
+        int parity = parser.consume(':')
+                ? SerialPortConfig.parityFromName(parser.nextToken()) : -1;
+        int stopBits = parser.parseInt();
+        int flowControl = parser.consume(':')
+                ? SerialPortConfig.flowControlFromName(parser.nextToken()) : -1;
+        int readMinimum = parser.parseInt();
+        int readTimeout = parser.consume(':') ? parser.parseInt() : -1;
+
+        if (baudRate < 0 || dataBits < 0 || parity < 0 || stopBits < 0 || flowControl < 0 ||
+                readMinimum < 0 || readTimeout < 0 || !parser.atEnd()) {
+            return command.fail("error:Invalid serial command (needs full configuration)");
+        }
+
+        command.mValues[3] = stopBits;
+        command.mValues[4] = flowControl;
+        command.mValues[5] = readMinimum;
+        command.mValues[6] = readTimeout;
+        return command.succeed(ACTION_SERIAL_SET, baudRate, dataBits, parity);
+    }
+
+    /**
+     * Parses clock synchronisation commands. The page estimates the offset between its server
+     * time and the host's clock by noting its server time before sending `ping`, and after having
+     * received the reply, and then sharing the results through `sample`. The following commands
+     * are supported:
+     * - get                                  Returns the clock offset estimate as JSON.
+     * - ping                                 Returns the host time in milliseconds.
+     * - reset                                Discards all samples.
+     * - sample:{sendMs}:{hostMs}:{receiveMs} Adds a sample, returns the updated estimate as JSON.
+     */
+    static boolean parseSync(CommandParser parser, BridgeCommand command) {
+        if (parser.isRest("ping"))
+            return command.succeed(ACTION_SYNC_PING);
+        if (parser.isRest("reset"))
+            return command.succeed(ACTION_SYNC_RESET);
+        if (parser.isRest("get"))
+            return command.succeed(ACTION_SYNC_GET);
+
+        if (!parser.consumeToken("sample"))
+            return command.fail("error:Invalid sync command");
+
+        long sendTimeMs = parser.parseLong();
+        long hostTimeMs = parser.consume(':') ? parser.parseLong() : -1;
+        long receiveTimeMs = parser.consume(':') ? parser.parseLong() : -1;
+
+        if (sendTimeMs < 0 || hostTimeMs < 0 || receiveTimeMs < 0 || !parser.atEnd())
+            return command.fail("error:Invalid sync command (needs three times)");
+
+        return command.succeed(ACTION_SYNC_SAMPLE, sendTimeMs, hostTimeMs, receiveTimeMs);
+    }
+
+    /**
+     * Parses volume commands. The following commands are supported:
+     * - get        Returns the device's current volume level.
+     * - {0-255}    Updates the device's volume to the given value.
+     */
+    static boolean parseVolume(CommandParser parser, BridgeCommand command) {
+        if (parser.isRest("get"))
+            return command.succeed(ACTION_VOLUME_GET);
+
+        int volume = parser.parseInt();
+        if (volume < 0 || !parser.atEnd())
+            return command.fail("error:Invalid volume command");
+
+        if (volume > 255)
+            return command.fail("error:Invalid volume command (out of bounds");
+
+        return command.succeed(ACTION_VOLUME_SET, volume);
+    }
+
+    /**
+     * Parses WebView commands. The following commands are supported:
+     * - get        Returns statistics about renderer crashes and in-place recoveries as JSON.
+     */
+    static boolean parseWebView(CommandParser parser, BridgeCommand command) {
+        if (parser.isRest("get"))
+            return command.succeed(ACTION_WEBVIEW_GET);
+
+        return command.fail("error:Invalid webview command");
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Clears the arguments of a previously parsed message.
+     */
+    private void clear() {
+        this.mAction = ACTION_INVALID;
+        this.mError = null;
+        this.mText = null;
+        this.mSpeed = 0;
+        this.mCurveLux = null;
+        this.mCurveLevels = null;
+    }
+
+    /**
+     * Marks the command as invalid because of the given `error`. Always returns false.
+     */
+    private boolean fail(String error) {
+        this.mAction = ACTION_INVALID;
+        this.mError = error;
+        return false;
+    }
+
+    /**
+     * Marks the command as valid, with the given `action` and up to three numeric arguments. Any
+     * further arguments have to be stored by the caller. Always returns true.
+     */
+    private boolean succeed(int action) {
+        this.mAction = action;
+        return true;
+    }
+
+    private boolean succeed(int action, long first) {
+        this.mValues[0] = first;
+        return this.succeed(action);
+    }
+
+    private boolean succeed(int action, long first, long second) {
+        this.mValues[1] = second;
+        return this.succeed(action, first);
+    }
+
+    private boolean succeed(int action, long first, long second, long third) {
+        this.mValues[2] = third;
+        return this.succeed(action, first, second);
+    }
+}
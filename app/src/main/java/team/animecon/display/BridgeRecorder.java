@@ -0,0 +1,384 @@
+// Copyright 2024 Peter Beverloo & AnimeCon. All rights reserved.
+// Use of this source code is governed by a MIT license that can be found in the LICENSE file.
+
+package team.animecon.display;
+
+import android.content.Context;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.SystemClock;
+import android.util.Log;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * The `BridgeRecorder` records all messages received from JavaScript, together with the time at
+ * which they were received and the response that they were given, to an append-only file. Such
+ * recordings can be fed back through the `BridgeReplayer` to load test the command path.
+ *
+ * Recordings start with a header (magic, version and wall time at which recording started),
+ * followed by one entry per message: the time since the previous entry and the time it took to
+ * handle the message, both in microseconds and variable length encoded, followed by the message
+ * and the response as UTF-8 strings prefixed by their variable length encoded byte length. Unlike
+ * modified UTF-8, this doesn't limit strings to 64KB. Writes happen on a background thread.
+ */
+public class BridgeRecorder {
+    private static final String TAG = "BridgeRecorder";
+
+    /**
+     * Magic and version written in the header of each recording.
+     */
+    private static final int MAGIC = 0x564d4252;  // "VMBR"
+    private static final int VERSION = 1;
+
+    /**
+     * File extension used for recordings, and the delay after which written entries are flushed.
+     */
+    static final String EXTENSION = ".rec";
+    private static final long FLUSH_DELAY_MS = 1000;
+
+    /**
+     * A single entry read from a recording.
+     */
+    static class Entry {
+        long offsetUs;
+        long latencyUs;
+        String message;
+        String response;
+    }
+
+    /**
+     * The directory in which recordings will be stored.
+     */
+    private final File mDirectory;
+
+    /**
+     * Background thread on which the recording will be written. The `mStream` must only be accessed
+     * on this thread.
+     */
+    private final Handler mHandler;
+    private DataOutputStream mStream;
+    private boolean mFlushPending = false;
+
+    private final Runnable mFlushRunnable = new Runnable() {
+        @Override
+        public void run() {
+            BridgeRecorder.this.flush();
+        }
+    };
+
+    /**
+     * State of the current recording, only to be accessed on the main thread.
+     */
+    private boolean mRecording = false;
+    private String mName;
+    private int mEntryCount = 0;
+    private long mLastEntryTimeNs;
+
+    public BridgeRecorder(Context context) {
+        this.mDirectory = new File(context.getFilesDir(), "recordings");
+
+        HandlerThread thread = new HandlerThread(TAG);
+        thread.start();
+
+        this.mHandler = new Handler(thread.getLooper());
+    }
+
+    /**
+     * Returns the directory in which recordings are being stored.
+     */
+    public File getDirectory() {
+        return this.mDirectory;
+    }
+
+    /**
+     * Returns whether bridge traffic is currently being recorded.
+     */
+    public boolean isRecording() {
+        return this.mRecording;
+    }
+
+    /**
+     * Starts a new recording. Returns the name of the recording, or NULL when already recording.
+     */
+    public String start() {
+        if (this.mRecording)
+            return null;
+
+        final long wallTime = System.currentTimeMillis();
+        final String name = "bridge-" +
+                new SimpleDateFormat("yyyyMMdd-HHmmss-SSS", Locale.US).format(new Date(wallTime));
+
+        this.mRecording = true;
+        this.mName = name;
+        this.mEntryCount = 0;
+        this.mLastEntryTimeNs = SystemClock.elapsedRealtimeNanos();
+
+        this.mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                BridgeRecorder.this.open(name, wallTime);
+            }
+        });
+
+        return name;
+    }
+
+    /**
+     * Records that `message` was received at `startTimeNs`, and was responded to with `response`.
+     * Messages that control recording and replaying themselves will not be recorded.
+     */
+    public void record(final String message, final String response, long startTimeNs) {
+        if (!this.mRecording || message.startsWith("record:") || message.startsWith("replay:"))
+            return;
+
+        long currentTimeNs = SystemClock.elapsedRealtimeNanos();
+
+        final long offsetUs = Math.max(0, (startTimeNs - this.mLastEntryTimeNs) / 1000);
+        final long latencyUs = (currentTimeNs - startTimeNs) / 1000;
+
+        this.mLastEntryTimeNs = startTimeNs;
+        this.mEntryCount++;
+
+        this.mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                BridgeRecorder.this.write(offsetUs, latencyUs, message, response);
+            }
+        });
+    }
+
+    /**
+     * Stops the current recording. Returns whether a recording was in progress.
+     */
+    public boolean stop() {
+        if (!this.mRecording)
+            return false;
+
+        this.mRecording = false;
+        this.mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                BridgeRecorder.this.close();
+            }
+        });
+
+        return true;
+    }
+
+    /**
+     * Returns the state of the recorder and the list of available recordings as JSON.
+     */
+    public JSONObject toJson() throws JSONException {
+        JSONObject result = new JSONObject();
+        result.put("recording", this.mRecording);
+        if (this.mRecording) {
+            result.put("name", this.mName);
+            result.put("entries", this.mEntryCount);
+        }
+
+        JSONArray recordings = new JSONArray();
+
+        File[] files = this.mDirectory.listFiles();
+        if (files != null) {
+            Arrays.sort(files);
+            for (File file : files) {
+                String fileName = file.getName();
+                if (!fileName.endsWith(EXTENSION))
+                    continue;
+
+                JSONObject recording = new JSONObject();
+                recording.put(
+                        "name", fileName.substring(0, fileName.length() - EXTENSION.length()));
+                recording.put("bytes", file.length());
+                recordings.put(recording);
+            }
+        }
+
+        result.put("recordings", recordings);
+        return result;
+    }
+
+    /**
+     * Reads all entries from the given recording `file`. A truncated final entry, for example due
+     * to the app having crashed while recording, will be ignored.
+     */
+    static List<Entry> read(File file) throws IOException {
+        List<Entry> entries = new ArrayList<Entry>();
+        try (DataInputStream stream = new DataInputStream(
+                new BufferedInputStream(new FileInputStream(file)))) {
+            if (stream.readInt() != MAGIC)
+                throw new IOException("Unrecognised recording format");
+
+            int version = stream.readInt();
+            if (version != VERSION)
+                throw new IOException("Unrecognised recording version: " + version);
+
+            stream.readLong();  // wall time
+
+            long offsetUs = 0;
+            while (true) {
+                Entry entry = new Entry();
+                try {
+                    offsetUs += readVarLong(stream);
+
+                    entry.offsetUs = offsetUs;
+                    entry.latencyUs = readVarLong(stream);
+                    entry.message = readString(stream);
+                    entry.response = readString(stream);
+                } catch (EOFException e) {
+                    break;
+                }
+
+                entries.add(entry);
+            }
+        }
+
+        return entries;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Opens the recording with the given `name`, and writes its header. Runs on the background
+     * thread.
+     */
+    private void open(String name, long wallTime) {
+        if (!this.mDirectory.isDirectory() && !this.mDirectory.mkdirs()) {
+            Log.e(TAG, "Unable to create the recordings directory");
+            return;
+        }
+
+        try {
+            File file = new File(this.mDirectory, name + EXTENSION);
+            this.mStream = new DataOutputStream(
+                    new BufferedOutputStream(new FileOutputStream(file)));
+
+            this.mStream.writeInt(MAGIC);
+            this.mStream.writeInt(VERSION);
+            this.mStream.writeLong(wallTime);
+        } catch (IOException e) {
+            Log.e(TAG, "Unable to open the recording: " + e.getMessage());
+            this.mStream = null;
+        }
+    }
+
+    /**
+     * Appends a single entry to the recording. Runs on the background thread. The strings are
+     * encoded before anything is written, so that a failure can't leave a partial entry behind.
+     */
+    private void write(long offsetUs, long latencyUs, String message, String response) {
+        if (this.mStream == null)
+            return;
+
+        byte[] messageBytes = message.getBytes(StandardCharsets.UTF_8);
+        byte[] responseBytes = response.getBytes(StandardCharsets.UTF_8);
+
+        try {
+            writeVarLong(this.mStream, offsetUs);
+            writeVarLong(this.mStream, latencyUs);
+            writeVarLong(this.mStream, messageBytes.length);
+            this.mStream.write(messageBytes);
+            writeVarLong(this.mStream, responseBytes.length);
+            this.mStream.write(responseBytes);
+        } catch (IOException e) {
+            Log.e(TAG, "Unable to write to the recording: " + e.getMessage());
+        }
+
+        if (!this.mFlushPending) {
+            this.mFlushPending = true;
+            this.mHandler.postDelayed(this.mFlushRunnable, FLUSH_DELAY_MS);
+        }
+    }
+
+    /**
+     * Flushes written entries to disk. Runs on the background thread.
+     */
+    private void flush() {
+        this.mFlushPending = false;
+        if (this.mStream == null)
+            return;
+
+        try {
+            this.mStream.flush();
+        } catch (IOException e) {
+            Log.e(TAG, "Unable to flush the recording: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Closes the recording. Runs on the background thread.
+     */
+    private void close() {
+        if (this.mStream == null)
+            return;
+
+        this.mHandler.removeCallbacks(this.mFlushRunnable);
+        this.mFlushPending = false;
+        try {
+            this.mStream.close();
+        } catch (IOException e) {
+            Log.e(TAG, "Unable to close the recording: " + e.getMessage());
+        }
+
+        this.mStream = null;
+    }
+
+    /**
+     * Writes `value` to the `stream` in a variable length encoding, seven bits at a time.
+     */
+    private static void writeVarLong(DataOutputStream stream, long value) throws IOException {
+        while ((value & ~0x7FL) != 0) {
+            stream.writeByte((int) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        stream.writeByte((int) value);
+    }
+
+    /**
+     * Reads a value written by `writeVarLong` from the `stream`.
+     */
+    private static long readVarLong(DataInputStream stream) throws IOException {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            int b = stream.readUnsignedByte();
+            value |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0)
+                return value;
+        }
+        throw new IOException("Malformed variable length value");
+    }
+
+    /**
+     * Reads a UTF-8 string prefixed by its variable length encoded byte length from the `stream`.
+     */
+    private static String readString(DataInputStream stream) throws IOException {
+        long length = readVarLong(stream);
+        if (length < 0 || length > Integer.MAX_VALUE)
+            throw new IOException("Malformed string length");
+
+        byte[] bytes = new byte[(int) length];
+        stream.readFully(bytes);
+
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,600 @@
+// Copyright 2024 Peter Beverloo & AnimeCon. All rights reserved.
+// Use of this source code is governed by a MIT license that can be found in the LICENSE file.
+
+package team.animecon.display;
+
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.SystemClock;
+import android.util.Log;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * The `BridgeReplayer` feeds a recording made by the `BridgeRecorder` back through a separate
+ * instance of the `WebMessageListener`, which allows the command path to be load tested with real
+ * workloads. Replays never touch the actual hardware: controllers are replaced by fakes that only
+ * track state, or by simulated controllers that additionally mimic the timing of the hardware.
+ *
+ * Recordings can be replayed at their original pace, a multiple thereof, or as fast as possible.
+ * Throughput, the latency distribution and divergences between the recorded and replayed
+ * responses are reported. Replies that depend on the environment or on timing, such as the
+ * device's IP addresses or monitoring statistics, are only compared on whether they succeeded.
+ * The fake brightness and volume start at the levels the device reported during the recording.
+ *
+ * Clock synchronisation samples carry the host time at which the page's ping was handled, which
+ * is rebased onto the replay's clock using the replayed ping, so that scheduled light commands
+ * are accepted as they were during the recording.
+ */
+public class BridgeReplayer {
+    private static final String TAG = "BridgeReplayer";
+
+    /**
+     * Maximum number of divergences of which details will be reported.
+     */
+    private static final int MAX_DIVERGENCE_DETAILS = 10;
+
+    /**
+     * Messages whose successful replies depend on the environment or on timing, and thus will be
+     * compared without their payload. Entries ending with a colon match all messages they prefix,
+     * e.g. auto brightness replies carry the current light sensor reading.
+     */
+    private static final String[] VOLATILE_MESSAGES = new String[] {
+            "brightness:auto:", "frames:get", "idle:get", "ip", "light:status", "sync:",
+            "webview:get" };
+
+    /**
+     * Messages that will not be compared at all, as recording and replaying are unavailable to the
+     * listener used for replays.
+     */
+    private static final String[] UNCOMPARABLE_MESSAGES = new String[] { "record:", "replay:" };
+
+    /**
+     * The recorder whose recordings will be replayed.
+     */
+    private final BridgeRecorder mBridgeRecorder;
+
+    /**
+     * Background thread on which replays will be executed.
+     */
+    private final Handler mHandler;
+
+    /**
+     * State and results of the most recent replay. Guarded by `this`.
+     */
+    private boolean mRunning = false;
+    private JSONObject mResult;
+
+    public BridgeReplayer(BridgeRecorder bridgeRecorder) {
+        this.mBridgeRecorder = bridgeRecorder;
+
+        HandlerThread thread = new HandlerThread(TAG);
+        thread.start();
+
+        this.mHandler = new Handler(thread.getLooper());
+    }
+
+    /**
+     * Starts replaying the recording with the given `name` at the given `speed`, where zero means
+     * as fast as possible. Returns whether the replay has been started.
+     */
+    public boolean start(String name, final double speed, final boolean simulated) {
+        if (!name.matches("[A-Za-z0-9-]+"))
+            return false;
+
+        final File file =
+                new File(this.mBridgeRecorder.getDirectory(), name + BridgeRecorder.EXTENSION);
+        if (!file.isFile())
+            return false;
+
+        synchronized (this) {
+            if (this.mRunning)
+                return false;
+
+            this.mRunning = true;
+            this.mResult = null;
+        }
+
+        final FakeBrightnessController brightnessController = new FakeBrightnessController();
+        final FakeVolumeController volumeController = new FakeVolumeController();
+        final WebMessageListener listener =
+                createListener(brightnessController, volumeController, simulated);
+
+        this.mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                JSONObject result;
+                try {
+                    result = BridgeReplayer.this.replay(
+                            listener, brightnessController, volumeController, file, speed);
+                    result.put("name", name);
+                    result.put("simulated", simulated);
+                } catch (IOException | JSONException e) {
+                    Log.e(TAG, "Unable to replay the recording: " + e.getMessage());
+                    result = new JSONObject();
+                    try {
+                        result.put("error", e.getMessage());
+                    } catch (JSONException ignored) {}
+                }
+
+                synchronized (BridgeReplayer.this) {
+                    BridgeReplayer.this.mRunning = false;
+                    BridgeReplayer.this.mResult = result;
+                }
+            }
+        });
+
+        return true;
+    }
+
+    /**
+     * Returns whether a replay is in progress, together with the results of the last replay.
+     */
+    public synchronized JSONObject toJson() throws JSONException {
+        JSONObject result = new JSONObject();
+        result.put("running", this.mRunning);
+        if (this.mResult != null)
+            result.put("result", this.mResult);
+
+        return result;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Creates a `WebMessageListener` backed by fake or simulated controllers.
+     */
+    private static WebMessageListener createListener(
+            FakeBrightnessController brightnessController, FakeVolumeController volumeController,
+            boolean simulated) {
+        return new WebMessageListener(
+                new FakeAutoBrightnessController(), brightnessController,
+                new ClockOffsetEstimator(), new FakeFrameMonitor(), new FakeIdleController(),
+                new FakeKioskController(), new FakeLightController(simulated), volumeController,
+                new FakeWebViewController(), /* bridgeRecorder= */ null,
+                /* bridgeReplayer= */ null);
+    }
+
+    /**
+     * Replays the entries in the given `file` through the `listener`, after seeding the fake
+     * controllers with the levels found in the recording. Runs on the replay thread.
+     */
+    private JSONObject replay(
+            WebMessageListener listener, FakeBrightnessController brightnessController,
+            FakeVolumeController volumeController, File file, double speed)
+            throws IOException, JSONException {
+        List<BridgeRecorder.Entry> entries = BridgeRecorder.read(file);
+
+        int initialBrightness = findInitialLevel(entries, "brightness");
+        if (initialBrightness >= 0)
+            brightnessController.seed(initialBrightness);
+
+        int initialVolume = findInitialLevel(entries, "volume");
+        if (initialVolume >= 0)
+            volumeController.update(initialVolume);
+
+        long[] latenciesNs = new long[entries.size()];
+        long[] recordedLatenciesNs = new long[entries.size()];
+
+        int divergences = 0;
+        JSONArray divergenceDetails = new JSONArray();
+
+        // Difference between the replay's host clock and the recording's, known after a ping.
+        BridgeCommand command = new BridgeCommand();
+        CommandParser parser = new CommandParser();
+        long hostTimeDeltaMs = 0;
+        boolean hostTimeKnown = false;
+
+        long startTimeNs = SystemClock.elapsedRealtimeNanos();
+        for (int index = 0; index < entries.size(); ++index) {
+            BridgeRecorder.Entry entry = entries.get(index);
+            if (speed > 0) {
+                long targetTimeNs = startTimeNs + (long) (entry.offsetUs * 1000 / speed);
+                long delayMs = (targetTimeNs - SystemClock.elapsedRealtimeNanos()) / 1_000_000;
+                if (delayMs > 0)
+                    SystemClock.sleep(delayMs);
+            }
+
+            String message = entry.message;
+            if (hostTimeKnown && BridgeCommand.parse(parser, message, command) &&
+                    command.getAction() == BridgeCommand.ACTION_SYNC_SAMPLE) {
+                message = "sync:sample:" + command.getLong(0) + ":" +
+                        (command.getLong(1) + hostTimeDeltaMs) + ":" + command.getLong(2);
+            }
+
+            long messageStartTimeNs = SystemClock.elapsedRealtimeNanos();
+            String response = listener.handleMessage(message);
+
+            latenciesNs[index] = SystemClock.elapsedRealtimeNanos() - messageStartTimeNs;
+            recordedLatenciesNs[index] = entry.latencyUs * 1000;
+
+            if (message.equals("sync:ping")) {
+                long recordedHostTimeMs = parseHostTime(entry.response);
+                long replayedHostTimeMs = parseHostTime(response);
+                if (recordedHostTimeMs >= 0 && replayedHostTimeMs >= 0) {
+                    hostTimeDeltaMs = replayedHostTimeMs - recordedHostTimeMs;
+                    hostTimeKnown = true;
+                }
+            }
+
+            if (isComparable(entry.message) && !normalise(entry.message, response).equals(
+                    normalise(entry.message, entry.response))) {
+                if (divergences++ < MAX_DIVERGENCE_DETAILS) {
+                    JSONObject divergence = new JSONObject();
+                    divergence.put("index", index);
+                    divergence.put("message", entry.message);
+                    divergence.put("recorded", entry.response);
+                    divergence.put("replayed", response);
+                    divergenceDetails.put(divergence);
+                }
+            }
+        }
+
+        long durationNs = SystemClock.elapsedRealtimeNanos() - startTimeNs;
+
+        JSONObject result = new JSONObject();
+        result.put("speed", speed > 0 ? speed : "max");
+        result.put("messages", entries.size());
+        result.put("durationMs", durationNs / 1_000_000.0);
+        result.put("messagesPerSecond",
+                durationNs > 0 ? entries.size() / (durationNs / 1_000_000_000.0) : 0);
+        result.put("latency", toDistribution(latenciesNs));
+        result.put("recordedLatency", toDistribution(recordedLatenciesNs));
+        result.put("divergences", divergences);
+        result.put("divergenceDetails", divergenceDetails);
+
+        Log.i(TAG, "Replayed " + entries.size() + " messages in " + (durationNs / 1_000_000) +
+                "ms, " + divergences + " divergences");
+
+        return result;
+    }
+
+    /**
+     * Returns the level reported by the first successful "get" command in the given `namespace`,
+     * or -1 when the level was changed before being read, or was never read at all.
+     */
+    private static int findInitialLevel(List<BridgeRecorder.Entry> entries, String namespace) {
+        String getMessage = namespace + ":get";
+        String updatePattern = namespace + ":[0-9]+";
+
+        for (BridgeRecorder.Entry entry : entries) {
+            if (entry.message.matches(updatePattern))
+                return -1;
+
+            if (!entry.message.equals(getMessage) || !entry.response.startsWith("success:"))
+                continue;
+
+            try {
+                return Integer.parseInt(entry.response.substring(8));
+            } catch (NumberFormatException e) {
+                return -1;
+            }
+        }
+
+        return -1;
+    }
+
+    /**
+     * Returns the host time carried by the `response` to a ping, or -1 when it failed.
+     */
+    private static long parseHostTime(String response) {
+        if (!response.startsWith("success:"))
+            return -1;
+
+        try {
+            return Long.parseLong(response.substring(8));
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * Returns whether the replies to `message` can be compared between the recording and the
+     * replay at all.
+     */
+    private static boolean isComparable(String message) {
+        return !matchesAny(message, UNCOMPARABLE_MESSAGES);
+    }
+
+    /**
+     * Returns the `response` to `message` in a form that can be compared between the recording and
+     * the replay. Payloads of successful replies to volatile messages are dropped.
+     */
+    private static String normalise(String message, String response) {
+        if (response.startsWith("success:") && matchesAny(message, VOLATILE_MESSAGES))
+            return "success";
+
+        return response;
+    }
+
+    /**
+     * Returns whether `message` equals one of the `patterns`, or starts with one that ends with a
+     * colon.
+     */
+    private static boolean matchesAny(String message, String[] patterns) {
+        for (String pattern : patterns) {
+            if (pattern.endsWith(":") ? message.startsWith(pattern) : message.equals(pattern))
+                return true;
+        }
+
+        return false;
+    }
+
+    /**
+     * Returns the distribution of the given `valuesNs` as JSON, in milliseconds.
+     */
+    private static JSONObject toDistribution(long[] valuesNs) throws JSONException {
+        JSONObject result = new JSONObject();
+        if (valuesNs.length == 0)
+            return result;
+
+        long[] sorted = valuesNs.clone();
+        Arrays.sort(sorted);
+
+        long total = 0;
+        for (long value : sorted)
+            total += value;
+
+        result.put("avgMs", (total / (double) sorted.length) / 1_000_000.0);
+        result.put("p50Ms", sorted[(int) (sorted.length * 0.50)] / 1_000_000.0);
+        result.put("p90Ms", sorted[(int) (sorted.length * 0.90)] / 1_000_000.0);
+        result.put("p99Ms", sorted[(int) (sorted.length * 0.99)] / 1_000_000.0);
+        result.put("maxMs", sorted[sorted.length - 1] / 1_000_000.0);
+        return result;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+    // Fake and simulated controllers used during replays. None of these touch the actual hardware,
+    // and none of them start threads or observe the system.
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Auto brightness controller that tracks its state, but never reads the light sensor.
+     */
+    private static class FakeAutoBrightnessController
+            implements WebMessageListener.AutoBrightnessDelegate {
+        private boolean mEnabled = false;
+        private int[] mCurveLux = new int[0];
+
+        @Override
+        public boolean setEnabled(boolean enabled) {
+            this.mEnabled = enabled;
+            return true;
+        }
+
+        @Override
+        public boolean setCurve(int[] lux, int[] levels) {
+            if (!AutoBrightnessController.isValidCurve(lux, levels))
+                return false;
+
+            this.mCurveLux = lux.clone();
+            return true;
+        }
+
+        @Override
+        public JSONObject toJson() throws JSONException {
+            JSONObject result = new JSONObject();
+            result.put("enabled", this.mEnabled);
+            result.put("curvePoints", this.mCurveLux.length);
+            return result;
+        }
+    }
+
+    private static class FakeBrightnessController implements WebMessageListener.BrightnessDelegate {
+        private static final int MINIMUM_BRIGHTNESS = 5;
+
+        private int mBrightness = 128;
+
+        /**
+         * Sets the brightness without applying the minimum, as the device may have been below it.
+         */
+        void seed(int brightness) {
+            this.mBrightness = brightness;
+        }
+
+        @Override
+        public int getBrightness() {
+            return this.mBrightness;
+        }
+
+        @Override
+        public boolean update(int brightness) {
+            if (brightness < MINIMUM_BRIGHTNESS || brightness > 255)
+                return false;
+
+            this.mBrightness = brightness;
+            return true;
+        }
+    }
+
+    private static class FakeFrameMonitor implements WebMessageListener.FrameMonitorDelegate {
+        @Override
+        public void onCommandStarted(String command) {}
+
+        @Override
+        public void onCommandFinished() {}
+
+        @Override
+        public void enable() {}
+
+        @Override
+        public void disable() {}
+
+        @Override
+        public void reset() {}
+
+        @Override
+        public JSONObject toJson() {
+            return new JSONObject();
+        }
+    }
+
+    /**
+     * Idle controller that validates schedules, but never enters idle mode.
+     */
+    private static class FakeIdleController implements WebMessageListener.IdleDelegate {
+        @Override
+        public boolean isIdle() {
+            return false;
+        }
+
+        @Override
+        public boolean setSchedule(int startMinute, int endMinute) {
+            return startMinute >= 0 && startMinute < 24 * 60 && endMinute >= 0 &&
+                    endMinute < 24 * 60;
+        }
+
+        @Override
+        public void enterIdle() {}
+
+        @Override
+        public void exitIdle() {}
+
+        @Override
+        public void clearOverride() {}
+
+        @Override
+        public boolean deferBrightness(int brightness) {
+            return false;
+        }
+
+        @Override
+        public JSONObject toJson() {
+            return new JSONObject();
+        }
+    }
+
+    private static class FakeKioskController implements WebMessageListener.KioskDelegate {
+        @Override
+        public boolean enable() {
+            return true;
+        }
+
+        @Override
+        public boolean disable() {
+            return true;
+        }
+
+        @Override
+        public void hideUserInterface() {}
+    }
+
+    /**
+     * Light controller that tracks whether it's been opened, and how many commands have been
+     * scheduled. Scheduled commands are never sent. When `simulated`, writes take as long as they
+     * would take on the wire at the configured baud rate, and are spaced like the actual writes.
+     */
+    private static class FakeLightController implements WebMessageListener.LightDelegate {
+        private final boolean mSimulated;
+        private boolean mOpen = true;
+        private int mScheduledCount = 0;
+        private long mLastWriteTimeMs = -LightController.COMMAND_GAP_MS;
+        private SerialPortConfig mConfig = new SerialPortConfig(9600);
+
+        FakeLightController(boolean simulated) {
+            this.mSimulated = simulated;
+        }
+
+        @Override
+        public boolean open() {
+            if (this.mOpen)
+                return false;  // already open
+
+            this.mOpen = true;
+            return true;
+        }
+
+        @Override
+        public boolean close() {
+            if (!this.mOpen)
+                return false;  // already closed
+
+            this.mOpen = false;
+            return true;
+        }
+
+        @Override
+        public boolean set(int red, int green, int blue) {
+            this.sendCommand("KEEP:RED:0:" + red);
+            this.sendCommand("KEEP:GREEN:0:" + green);
+            return this.sendCommand("KEEP:BLUE:0:" + blue);
+        }
+
+        @Override
+        public boolean sendCommand(String command) {
+            if (!this.mOpen)
+                return false;
+
+            if (this.mSimulated) {
+                long waitMs = this.mLastWriteTimeMs + LightController.COMMAND_GAP_MS -
+                        SystemClock.elapsedRealtime();
+                if (waitMs > 0)
+                    SystemClock.sleep(waitMs);
+
+                long durationUs = command.length() * this.mConfig.getBitsPerByte() * 1_000_000L /
+                        Math.max(1, this.mConfig.getBaudRate());
+                SystemClock.sleep(Math.max(1, durationUs / 1000));
+
+                this.mLastWriteTimeMs = SystemClock.elapsedRealtime();
+            }
+
+            return true;
+        }
+
+        @Override
+        public void schedule(String command, long targetTimeNs) {
+            this.mScheduledCount++;
+        }
+
+        @Override
+        public void cancelScheduled() {
+            this.mScheduledCount = 0;
+        }
+
+        @Override
+        public JSONObject getStatus() throws JSONException {
+            JSONObject result = new JSONObject();
+            result.put("open", this.mOpen);
+            result.put("scheduled", this.mScheduledCount);
+            return result;
+        }
+
+        @Override
+        public SerialPortConfig getSerialConfig() {
+            return this.mConfig;
+        }
+
+        @Override
+        public void configureSerial(SerialPortConfig config) {
+            this.mConfig = config;
+        }
+    }
+
+    private static class FakeVolumeController implements WebMessageListener.VolumeDelegate {
+        private int mVolume = 128;
+
+        @Override
+        public int getVolume() {
+            return this.mVolume;
+        }
+
+        @Override
+        public void update(int volume) {
+            this.mVolume = volume;
+        }
+    }
+
+    private static class FakeWebViewController implements WebMessageListener.WebViewDelegate {
+        @Override
+        public JSONObject toJson() {
+            return new JSONObject();
+        }
+    }
+}
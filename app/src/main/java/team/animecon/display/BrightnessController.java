@@ -12,7 +12,7 @@ import android.provider.Settings;
  * Controller that allows the device's brightness to be manipulated. A special system permission has
  * to be granted, which the `Initialise()` function will insist on being the case.
  */
-public class BrightnessController {
+public class BrightnessController implements WebMessageListener.BrightnessDelegate {
     /**
      * The context of the application managing this controller.
      */
@@ -39,9 +39,17 @@ public class BrightnessController {
         }
     }
 
+    /**
+     * Returns the minimum brightness that this controller will apply.
+     */
+    public int getMinimumBrightness() {
+        return this.mMinimumBrightness;
+    }
+
     /**
      * Reads the current brightness from the system. This does the right thing since Android P.
      */
+    @Override
     public int getBrightness() {
         float brightness = Settings.System.getInt(
                 this.mContext.getContentResolver(), Settings.System.SCREEN_BRIGHTNESS, -1);
@@ -52,6 +60,7 @@ public class BrightnessController {
     /**
      * Sets the system brightness to the given `brightness`, which must be within valid range.
      */
+    @Override
     public boolean update(int brightness) {
         if (brightness < mMinimumBrightness || brightness < 0)
             return false;  // |brightness| is too low
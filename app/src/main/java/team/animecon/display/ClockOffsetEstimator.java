@@ -0,0 +1,150 @@
+// Copyright 2024 Peter Beverloo & AnimeCon. All rights reserved.
+// Use of this source code is governed by a MIT license that can be found in the LICENSE file.
+
+package team.animecon.display;
+
+import android.os.SystemClock;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * The `ClockOffsetEstimator` estimates the offset between the server time known to the Volunteer
+ * Manager page and this device's monotonic clock (`SystemClock.elapsedRealtime()`), which allows
+ * every display in the fleet to act on a shared timeline regardless of network jitter.
+ *
+ * Samples are taken using an NTP-style exchange over the bridge: the page notes its server time
+ * before sending a ping and after receiving the reply, which carries the host time at which it was
+ * handled. Assuming symmetric delays, the offset is the midpoint of the two server times minus the
+ * host time. Delays are not symmetric in practice, but the error is bounded by half the round trip
+ * time, so the sample with the shortest round trip within a recent window is used.
+ *
+ * Only to be used on the main thread.
+ */
+public class ClockOffsetEstimator {
+    /**
+     * Number of samples that will be retained, and the maximum age of samples that will be used.
+     * Samples expire because the clocks drift apart over time.
+     */
+    private static final int MAX_SAMPLES = 16;
+    private static final long MAX_SAMPLE_AGE_MS = 2 * 60 * 1000;
+
+    /**
+     * Samples with a longer round trip than this are too imprecise to be useful.
+     */
+    private static final long MAX_ROUND_TRIP_MS = 1000;
+
+    /**
+     * Ring buffer of samples: the host time at which each was taken, its offset between server and
+     * host time, and its round trip time.
+     */
+    private final long[] mSampleTimes = new long[MAX_SAMPLES];
+    private final double[] mSampleOffsets = new double[MAX_SAMPLES];
+    private final long[] mSampleRoundTrips = new long[MAX_SAMPLES];
+
+    private int mSampleCount = 0;
+    private int mNextSample = 0;
+    private int mRejectedCount = 0;
+
+    /**
+     * Adds a sample, in which the page sent a ping at `sendTimeMs` and received the reply at
+     * `receiveTimeMs` in server time, which was handled at `hostTimeMs` in host time. Returns
+     * whether the sample was accepted.
+     */
+    public boolean addSample(long sendTimeMs, long hostTimeMs, long receiveTimeMs) {
+        long currentTimeMs = SystemClock.elapsedRealtime();
+        long roundTripMs = receiveTimeMs - sendTimeMs;
+
+        if (roundTripMs < 0 || roundTripMs > MAX_ROUND_TRIP_MS || hostTimeMs > currentTimeMs ||
+                currentTimeMs - hostTimeMs > MAX_ROUND_TRIP_MS) {
+            this.mRejectedCount++;
+            return false;
+        }
+
+        this.mSampleTimes[this.mNextSample] = hostTimeMs;
+        this.mSampleOffsets[this.mNextSample] = (sendTimeMs + receiveTimeMs) / 2.0 - hostTimeMs;
+        this.mSampleRoundTrips[this.mNextSample] = roundTripMs;
+
+        this.mNextSample = (this.mNextSample + 1) % MAX_SAMPLES;
+        this.mSampleCount = Math.min(this.mSampleCount + 1, MAX_SAMPLES);
+        return true;
+    }
+
+    /**
+     * Returns whether a recent enough sample is available to convert server time to host time.
+     */
+    public boolean isSynchronised() {
+        return this.findBestSample() != -1;
+    }
+
+    /**
+     * Converts the given `serverTimeMs` to host time in nanoseconds, comparable with the value of
+     * `SystemClock.elapsedRealtimeNanos()`. Must only be called when synchronised.
+     */
+    public long toHostTimeNanos(long serverTimeMs) {
+        int sample = this.findBestSample();
+        if (sample == -1)
+            throw new IllegalStateException("The clock has not been synchronised");
+
+        return Math.round((serverTimeMs - this.mSampleOffsets[sample]) * 1_000_000);
+    }
+
+    /**
+     * Discards all samples.
+     */
+    public void reset() {
+        this.mSampleCount = 0;
+        this.mNextSample = 0;
+        this.mRejectedCount = 0;
+    }
+
+    /**
+     * Returns the current estimate and statistics about the samples as JSON.
+     */
+    public JSONObject toJson() throws JSONException {
+        JSONObject result = new JSONObject();
+
+        int sample = this.findBestSample();
+        result.put("synchronised", sample != -1);
+        if (sample != -1) {
+            result.put("offsetMs", this.mSampleOffsets[sample]);
+            result.put("roundTripMs", this.mSampleRoundTrips[sample]);
+            result.put("ageMs", SystemClock.elapsedRealtime() - this.mSampleTimes[sample]);
+        }
+
+        result.put("samples", this.mSampleCount);
+        result.put("rejected", this.mRejectedCount);
+        return result;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Returns the index of the recent sample with the shortest round trip time, or -1. The most
+     * recent sample wins when round trip times are equal.
+     */
+    private int findBestSample() {
+        long oldestTimeMs = SystemClock.elapsedRealtime() - MAX_SAMPLE_AGE_MS;
+        int bestSample = -1;
+
+        for (int index = 0; index < this.mSampleCount; ++index) {
+            if (this.mSampleTimes[index] < oldestTimeMs)
+                continue;
+
+            if (bestSample == -1) {
+                bestSample = index;
+                continue;
+            }
+
+            long roundTripMs = this.mSampleRoundTrips[index];
+            long bestRoundTripMs = this.mSampleRoundTrips[bestSample];
+
+            if (roundTripMs < bestRoundTripMs || (roundTripMs == bestRoundTripMs &&
+                    this.mSampleTimes[index] > this.mSampleTimes[bestSample])) {
+                bestSample = index;
+            }
+        }
+
+        return bestSample;
+    }
+}
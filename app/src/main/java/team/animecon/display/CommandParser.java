@@ -0,0 +1,258 @@
+// Copyright 2024 Peter Beverloo & AnimeCon. All rights reserved.
+// Use of this source code is governed by a MIT license that can be found in the LICENSE file.
+
+package team.animecon.display;
+
+import java.util.Arrays;
+
+/**
+ * The `CommandParser` tokenizes messages received from JavaScript in a single pass, without
+ * creating intermediate strings. Messages take the form of `{namespace}:{arguments}`, where the
+ * namespace is looked up in an opcode table using an exact match, and the arguments are consumed
+ * through the parser's methods. Numbers are parsed directly from the message's characters.
+ *
+ * Instances are reused between messages, and thus are not thread safe.
+ */
+public final class CommandParser {
+    /**
+     * Opcodes for each of the namespaces that are supported by the bridge.
+     */
+    public static final int OP_INVALID = 0;
+    public static final int OP_BRIGHTNESS = 1;
+    public static final int OP_FRAMES = 2;
+    public static final int OP_IDLE = 3;
+    public static final int OP_IP = 4;
+    public static final int OP_KIOSK = 5;
+    public static final int OP_LIGHT = 6;
+    public static final int OP_LIGHTSET = 7;
+    public static final int OP_RECORD = 8;
+    public static final int OP_REPLAY = 9;
+    public static final int OP_SERIAL = 10;
+    public static final int OP_SYNC = 11;
+    public static final int OP_VOLUME = 12;
+    public static final int OP_WEBVIEW = 13;
+
+    /**
+     * The opcode table. Namespaces are indexed by their opcode.
+     */
+    private static final String[] NAMESPACES = new String[] {
+            /* OP_INVALID= */ "",
+            "brightness",
+            "frames",
+            "idle",
+            "ip",
+            "kiosk",
+            "light",
+            "lightset",
+            "record",
+            "replay",
+            "serial",
+            "sync",
+            "volume",
+            "webview",
+    };
+
+    /**
+     * Opcodes indexed by the length of their namespace and its last character, so that usually a
+     * single string comparison is necessary to identify a namespace. Namespaces that share both
+     * are stored in the same slot and compared in turn. Built from `NAMESPACES`.
+     */
+    private static final int MAX_NAMESPACE_LENGTH = 10;
+    private static final int[][][] OPCODE_TABLE = new int[MAX_NAMESPACE_LENGTH + 1][128][];
+
+    static {
+        for (int opcode = OP_INVALID + 1; opcode < NAMESPACES.length; ++opcode) {
+            String namespace = NAMESPACES[opcode];
+            int[][] slots = OPCODE_TABLE[namespace.length()];
+
+            char lastCharacter = namespace.charAt(namespace.length() - 1);
+            int[] opcodes = slots[lastCharacter];
+
+            if (opcodes == null) {
+                opcodes = new int[] { opcode };
+            } else {
+                opcodes = Arrays.copyOf(opcodes, opcodes.length + 1);
+                opcodes[opcodes.length - 1] = opcode;
+            }
+
+            slots[lastCharacter] = opcodes;
+        }
+    }
+
+    /**
+     * Maximum number of digits accepted by `parseInt()` and `parseLong()` respectively, which
+     * guarantees that they cannot overflow.
+     */
+    private static final int MAX_DIGITS = 9;
+    private static final int MAX_LONG_DIGITS = 18;
+
+    /**
+     * The message that's being parsed, its length and the current position within it.
+     */
+    private String mInput = "";
+    private int mLength = 0;
+    private int mPosition = 0;
+
+    /**
+     * Starts parsing the given `input`. Returns the opcode of its namespace, which must be followed
+     * by a colon or the end of the message, or `OP_INVALID` when it's not known. The parser will be
+     * positioned at the first character of the arguments.
+     */
+    public int reset(String input) {
+        this.mInput = input;
+        this.mLength = input.length();
+        this.mPosition = this.mLength;
+
+        int namespaceLength = input.indexOf(':');
+        if (namespaceLength == -1)
+            namespaceLength = this.mLength;
+
+        if (namespaceLength == 0 || namespaceLength > MAX_NAMESPACE_LENGTH)
+            return OP_INVALID;
+
+        char lastCharacter = input.charAt(namespaceLength - 1);
+        if (lastCharacter >= 128)
+            return OP_INVALID;
+
+        int[] opcodes = OPCODE_TABLE[namespaceLength][lastCharacter];
+        if (opcodes == null)
+            return OP_INVALID;
+
+        for (int opcode : opcodes) {
+            if (!input.startsWith(NAMESPACES[opcode]))
+                continue;
+
+            this.mPosition = Math.min(namespaceLength + 1, this.mLength);
+            return opcode;
+        }
+
+        return OP_INVALID;
+    }
+
+    /**
+     * Returns whether all input has been consumed.
+     */
+    public boolean atEnd() {
+        return this.mPosition == this.mLength;
+    }
+
+    /**
+     * Returns whether the remaining input is exactly the given `literal`, in which case it will be
+     * consumed entirely.
+     */
+    public boolean isRest(String literal) {
+        if (this.mLength - this.mPosition != literal.length())
+            return false;
+
+        if (!this.mInput.startsWith(literal, this.mPosition))
+            return false;
+
+        this.mPosition = this.mLength;
+        return true;
+    }
+
+    /**
+     * Returns whether the next token, which runs until the next colon or the end of the input, is
+     * exactly the given `literal`. If so, the token and the colon that follows it are consumed.
+     */
+    public boolean consumeToken(String literal) {
+        int end = this.mPosition + literal.length();
+        if (end > this.mLength || (end < this.mLength && this.mInput.charAt(end) != ':'))
+            return false;
+
+        if (!this.mInput.startsWith(literal, this.mPosition))
+            return false;
+
+        this.mPosition = Math.min(end + 1, this.mLength);
+        return true;
+    }
+
+    /**
+     * Consumes the given `character` when it's next in the input. Returns whether it was.
+     */
+    public boolean consume(char character) {
+        if (this.mPosition >= this.mLength || this.mInput.charAt(this.mPosition) != character)
+            return false;
+
+        this.mPosition++;
+        return true;
+    }
+
+    /**
+     * Parses a non-negative decimal integer at the current position. Returns -1, without consuming
+     * any input, when there are no digits or when there are more than can be represented.
+     */
+    public int parseInt() {
+        int position = this.mPosition;
+        int value = 0;
+
+        while (position < this.mLength) {
+            int digit = this.mInput.charAt(position) - '0';
+            if (digit < 0 || digit > 9)
+                break;
+
+            if (position - this.mPosition == MAX_DIGITS)
+                return -1;
+
+            value = value * 10 + digit;
+            position++;
+        }
+
+        if (position == this.mPosition)
+            return -1;
+
+        this.mPosition = position;
+        return value;
+    }
+
+    /**
+     * Parses a non-negative decimal long at the current position, for example a timestamp. Returns
+     * -1, without consuming any input, when there are no digits or when there are more than can be
+     * represented.
+     */
+    public long parseLong() {
+        int position = this.mPosition;
+        long value = 0;
+
+        while (position < this.mLength) {
+            int digit = this.mInput.charAt(position) - '0';
+            if (digit < 0 || digit > 9)
+                break;
+
+            if (position - this.mPosition == MAX_LONG_DIGITS)
+                return -1;
+
+            value = value * 10 + digit;
+            position++;
+        }
+
+        if (position == this.mPosition)
+            return -1;
+
+        this.mPosition = position;
+        return value;
+    }
+
+    /**
+     * Returns the next token, which runs until the next colon or the end of the input, and consumes
+     * it together with the colon that follows it. Creates a new string.
+     */
+    public String nextToken() {
+        int end = this.mPosition;
+        while (end < this.mLength && this.mInput.charAt(end) != ':')
+            end++;
+
+        String token = this.mInput.substring(this.mPosition, end);
+        this.mPosition = Math.min(end + 1, this.mLength);
+        return token;
+    }
+
+    /**
+     * Returns all remaining input, and consumes it. Creates a new string.
+     */
+    public String rest() {
+        String rest = this.mInput.substring(this.mPosition);
+        this.mPosition = this.mLength;
+        return rest;
+    }
+}
@@ -0,0 +1,453 @@
+// Copyright 2024 Peter Beverloo & AnimeCon. All rights reserved.
+// Use of this source code is governed by a MIT license that can be found in the LICENSE file.
+
+package team.animecon.display;
+
+import android.app.Activity;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.util.Log;
+import android.view.Choreographer;
+import android.view.FrameMetrics;
+import android.view.Window;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * The `FrameMonitor` observes frame timing of the activity's window, which allows the Volunteer
+ * Manager to measure how smoothly it renders on the actual display hardware. The durations of the
+ * frames that were actually rendered, and with that janky frames, are reported by the framework as
+ * `FrameMetrics`. Main thread stalls are detected through the `Choreographer` instead, as stalls
+ * may occur while nothing is being rendered. Both are aggregated over rolling windows.
+ *
+ * Commands received over the bridge are executed on the main thread as well, and thus can delay
+ * the next frame. The monitor is told about each command, so that stalls can be attributed to the
+ * slowest command that ran during the stalled frame interval.
+ *
+ * Monitoring is opt-in, as observing every frame keeps the Choreographer requesting vsync signals
+ * even when the page is otherwise entirely static.
+ */
+public class FrameMonitor
+        implements Choreographer.FrameCallback, WebMessageListener.FrameMonitorDelegate {
+    private static final String TAG = "FrameMonitor";
+
+    /**
+     * Duration of each of the rolling windows, and the number of windows that will be retained.
+     */
+    private static final long WINDOW_DURATION_MS = 10_000;
+    private static final int WINDOW_COUNT = 30;
+
+    /**
+     * Frames taking longer than this multiple of the vsync interval are considered to be janky.
+     */
+    private static final double JANK_FACTOR = 1.5;
+
+    /**
+     * Frame intervals longer than this are considered to be main thread stalls.
+     */
+    private static final long STALL_THRESHOLD_NS = 100_000_000L;
+
+    /**
+     * Frame intervals longer than this are gaps during which no frames were produced at all, for
+     * example because the screen was off, rather than main thread stalls.
+     */
+    private static final long MAXIMUM_STALL_NS = 10_000_000_000L;
+
+    /**
+     * Number of recent stalls that will be retained, including their attributed command.
+     */
+    private static final int STALL_HISTORY = 16;
+
+    /**
+     * Maximum length of a command that will be stored for the purposes of stall attribution.
+     */
+    private static final int MAX_COMMAND_LENGTH = 32;
+
+    /**
+     * Aggregated frame statistics for a single window of time.
+     */
+    private static class RollingWindow {
+        long startTimeMs;
+        int frames;
+        int jankyFrames;
+        int stalls;
+        long totalFrameNs;
+        long maxFrameNs;
+
+        void reset(long startTimeMs) {
+            this.startTimeMs = startTimeMs;
+            this.frames = 0;
+            this.jankyFrames = 0;
+            this.stalls = 0;
+            this.totalFrameNs = 0;
+            this.maxFrameNs = 0;
+        }
+    }
+
+    /**
+     * Information about a single observed stall of the main thread.
+     */
+    private static class Stall {
+        long timeMs;
+        long durationNs;
+        String command;
+        long commandNs;
+    }
+
+    /**
+     * The choreographer of the main thread, through which frame callbacks will be received.
+     */
+    private final Choreographer mChoreographer;
+
+    /**
+     * The activity's window, and the listener through which its frame metrics will be received.
+     * Metrics are delivered on the main thread, to which all state of the monitor is confined.
+     */
+    private final Window mWindow;
+    private final Handler mMetricsHandler = new Handler(Looper.getMainLooper());
+    private final Window.OnFrameMetricsAvailableListener mMetricsListener =
+            new Window.OnFrameMetricsAvailableListener() {
+                @Override
+                public void onFrameMetricsAvailable(
+                        Window window, FrameMetrics frameMetrics, int dropCount) {
+                    FrameMonitor.this.onFrameMetrics(frameMetrics);
+                }
+            };
+
+    /**
+     * Expected interval between frames, derived from the display's refresh rate.
+     */
+    private final long mVsyncIntervalNs;
+
+    /**
+     * Ring buffers of the rolling windows and the most recently observed stalls.
+     */
+    private final RollingWindow[] mWindows = new RollingWindow[WINDOW_COUNT];
+    private int mCurrentWindow = 0;
+
+    private final Stall[] mStalls = new Stall[STALL_HISTORY];
+    private int mStallCount = 0;
+
+    /**
+     * Whether the monitor is active, whether the activity has been paused, whether frame metrics
+     * are being received, and the timestamp of the previously observed frame callback. Frames are
+     * only observed while the monitor is enabled and the activity is not paused.
+     */
+    private boolean mEnabled = false;
+    private boolean mPaused = false;
+    private boolean mObservingMetrics = false;
+    private long mLastFrameTimeNs = 0;
+
+    /**
+     * Information about the bridge command that is currently running, and about the slowest bridge
+     * command that finished since the last observed frame.
+     */
+    private String mRunningCommand;
+    private long mRunningCommandStartNs;
+
+    private String mSlowestCommand;
+    private long mSlowestCommandNs;
+
+    public FrameMonitor(Activity activity) {
+        this.mChoreographer = Choreographer.getInstance();
+        this.mWindow = activity.getWindow();
+
+        float refreshRate = activity.getWindowManager().getDefaultDisplay().getRefreshRate();
+        if (refreshRate < 1.0f)
+            refreshRate = 60.0f;
+
+        this.mVsyncIntervalNs = (long) (1_000_000_000.0 / refreshRate);
+
+        for (int index = 0; index < WINDOW_COUNT; ++index)
+            this.mWindows[index] = new RollingWindow();
+        for (int index = 0; index < STALL_HISTORY; ++index)
+            this.mStalls[index] = new Stall();
+
+        this.reset();
+    }
+
+    /**
+     * Starts observing frames. Does nothing when the monitor is already active.
+     */
+    @Override
+    public void enable() {
+        if (this.mEnabled)
+            return;
+
+        this.mEnabled = true;
+        if (!this.mPaused)
+            this.startObserving();
+    }
+
+    /**
+     * Stops observing frames. Collected statistics will be retained.
+     */
+    @Override
+    public void disable() {
+        if (!this.mEnabled)
+            return;
+
+        this.mEnabled = false;
+        if (!this.mPaused)
+            this.stopObserving();
+    }
+
+    /**
+     * To be called when the activity has been paused. Frames will not be observed until it has
+     * been resumed, so that the time spent in between isn't mistaken for a stall.
+     */
+    public void onPause() {
+        if (this.mPaused)
+            return;
+
+        this.mPaused = true;
+        if (this.mEnabled)
+            this.stopObserving();
+    }
+
+    /**
+     * To be called when the activity has been resumed.
+     */
+    public void onResume() {
+        if (!this.mPaused)
+            return;
+
+        this.mPaused = false;
+        if (this.mEnabled)
+            this.startObserving();
+    }
+
+    /**
+     * Returns whether the monitor is currently observing frames.
+     */
+    public boolean isEnabled() {
+        return this.mEnabled;
+    }
+
+    /**
+     * Discards all collected statistics.
+     */
+    @Override
+    public void reset() {
+        long currentTimeMs = System.currentTimeMillis();
+        for (RollingWindow window : this.mWindows)
+            window.reset(0);
+
+        this.mCurrentWindow = 0;
+        this.mWindows[0].reset(currentTimeMs);
+        this.mStallCount = 0;
+        this.mLastFrameTimeNs = 0;
+        this.mSlowestCommand = null;
+        this.mSlowestCommandNs = 0;
+    }
+
+    /**
+     * To be called when the bridge starts executing the given `command`.
+     */
+    @Override
+    public void onCommandStarted(String command) {
+        if (!this.mEnabled)
+            return;
+
+        this.mRunningCommand = command;
+        this.mRunningCommandStartNs = SystemClock.elapsedRealtimeNanos();
+    }
+
+    /**
+     * To be called when the bridge has finished executing the most recently started command.
+     */
+    @Override
+    public void onCommandFinished() {
+        if (!this.mEnabled || this.mRunningCommand == null)
+            return;
+
+        long durationNs = SystemClock.elapsedRealtimeNanos() - this.mRunningCommandStartNs;
+        if (durationNs > this.mSlowestCommandNs) {
+            this.mSlowestCommand = this.mRunningCommand;
+            this.mSlowestCommandNs = durationNs;
+        }
+
+        this.mRunningCommand = null;
+    }
+
+    /**
+     * Returns the collected statistics as a JSON object, with totals over all retained windows, the
+     * individual windows themselves and the most recently observed stalls.
+     */
+    @Override
+    public JSONObject toJson() throws JSONException {
+        JSONObject result = new JSONObject();
+        result.put("enabled", this.mEnabled);
+        result.put("paused", this.mPaused);
+        result.put("metrics", this.mObservingMetrics);
+        result.put("vsyncMs", this.mVsyncIntervalNs / 1_000_000.0);
+        result.put("windowMs", WINDOW_DURATION_MS);
+
+        int frames = 0;
+        int jankyFrames = 0;
+        int stalls = 0;
+        long totalFrameNs = 0;
+        long maxFrameNs = 0;
+
+        JSONArray windows = new JSONArray();
+        for (int offset = WINDOW_COUNT - 1; offset >= 0; --offset) {
+            int index = (this.mCurrentWindow + WINDOW_COUNT - offset) % WINDOW_COUNT;
+
+            RollingWindow window = this.mWindows[index];
+            if (window.startTimeMs == 0)
+                continue;
+
+            JSONObject windowJson = new JSONObject();
+            windowJson.put("start", window.startTimeMs);
+            windowJson.put("frames", window.frames);
+            windowJson.put("janky", window.jankyFrames);
+            windowJson.put("stalls", window.stalls);
+            windowJson.put("avgMs", window.frames > 0
+                    ? (window.totalFrameNs / (double) window.frames) / 1_000_000.0 : 0);
+            windowJson.put("maxMs", window.maxFrameNs / 1_000_000.0);
+            windows.put(windowJson);
+
+            frames += window.frames;
+            jankyFrames += window.jankyFrames;
+            stalls += window.stalls;
+            totalFrameNs += window.totalFrameNs;
+            maxFrameNs = Math.max(maxFrameNs, window.maxFrameNs);
+        }
+
+        result.put("frames", frames);
+        result.put("janky", jankyFrames);
+        result.put("stalls", stalls);
+        result.put("avgMs", frames > 0 ? (totalFrameNs / (double) frames) / 1_000_000.0 : 0);
+        result.put("maxMs", maxFrameNs / 1_000_000.0);
+        result.put("windows", windows);
+
+        JSONArray stallsJson = new JSONArray();
+        int stallsRetained = Math.min(this.mStallCount, STALL_HISTORY);
+        for (int index = this.mStallCount - stallsRetained; index < this.mStallCount; ++index) {
+            Stall stall = this.mStalls[index % STALL_HISTORY];
+
+            JSONObject stallJson = new JSONObject();
+            stallJson.put("time", stall.timeMs);
+            stallJson.put("durationMs", stall.durationNs / 1_000_000.0);
+            if (stall.command != null) {
+                stallJson.put("command", stall.command);
+                stallJson.put("commandMs", stall.commandNs / 1_000_000.0);
+            }
+            stallsJson.put(stallJson);
+        }
+
+        result.put("recentStalls", stallsJson);
+        return result;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Starts receiving frame callbacks and frame metrics. The interval until the first callback
+     * will not be recorded.
+     */
+    private void startObserving() {
+        this.mLastFrameTimeNs = 0;
+        this.mChoreographer.postFrameCallback(this);
+
+        // Frame metrics require the window to have been attached with hardware acceleration.
+        try {
+            this.mWindow.addOnFrameMetricsAvailableListener(
+                    this.mMetricsListener, this.mMetricsHandler);
+            this.mObservingMetrics = true;
+        } catch (IllegalStateException e) {
+            Log.w(TAG, "Unable to observe frame metrics: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Stops receiving frame callbacks and frame metrics.
+     */
+    private void stopObserving() {
+        this.mChoreographer.removeFrameCallback(this);
+
+        if (this.mObservingMetrics) {
+            this.mWindow.removeOnFrameMetricsAvailableListener(this.mMetricsListener);
+            this.mObservingMetrics = false;
+        }
+    }
+
+    @Override
+    public void doFrame(long frameTimeNanos) {
+        if (!this.mEnabled || this.mPaused)
+            return;
+
+        if (this.mLastFrameTimeNs != 0)
+            this.recordInterval(frameTimeNanos - this.mLastFrameTimeNs);
+
+        this.mLastFrameTimeNs = frameTimeNanos;
+        this.mChoreographer.postFrameCallback(this);
+    }
+
+    /**
+     * Records the `frameMetrics` of a frame rendered by the activity's window. The first frame
+     * after the window became visible is ignored, as it includes the initial layout.
+     */
+    private void onFrameMetrics(FrameMetrics frameMetrics) {
+        if (!this.mEnabled || frameMetrics.getMetric(FrameMetrics.FIRST_DRAW_FRAME) == 1)
+            return;
+
+        long durationNs = frameMetrics.getMetric(FrameMetrics.TOTAL_DURATION);
+
+        RollingWindow window = this.getCurrentWindow(System.currentTimeMillis());
+        window.frames++;
+        window.totalFrameNs += durationNs;
+        window.maxFrameNs = Math.max(window.maxFrameNs, durationNs);
+
+        if (durationNs > this.mVsyncIntervalNs * JANK_FACTOR)
+            window.jankyFrames++;
+    }
+
+    /**
+     * Records that `intervalNs` passed between two frame callbacks, which is considered to be a
+     * stall when it exceeds the threshold. Stalls are attributed to the slowest command that ran.
+     */
+    private void recordInterval(long intervalNs) {
+        if (intervalNs >= STALL_THRESHOLD_NS && intervalNs < MAXIMUM_STALL_NS) {
+            long currentTimeMs = System.currentTimeMillis();
+
+            RollingWindow window = this.getCurrentWindow(currentTimeMs);
+            window.stalls++;
+
+            Stall stall = this.mStalls[this.mStallCount++ % STALL_HISTORY];
+            stall.timeMs = currentTimeMs;
+            stall.durationNs = intervalNs;
+            stall.command = null;
+            stall.commandNs = 0;
+
+            if (this.mSlowestCommand != null) {
+                stall.command = this.mSlowestCommand.length() > MAX_COMMAND_LENGTH
+                        ? this.mSlowestCommand.substring(0, MAX_COMMAND_LENGTH)
+                        : this.mSlowestCommand;
+                stall.commandNs = this.mSlowestCommandNs;
+            }
+        }
+
+        this.mSlowestCommand = null;
+        this.mSlowestCommandNs = 0;
+    }
+
+    /**
+     * Returns the window for `currentTimeMs`, moving on to the next window when the current one
+     * has ended.
+     */
+    private RollingWindow getCurrentWindow(long currentTimeMs) {
+        RollingWindow window = this.mWindows[this.mCurrentWindow];
+        if (currentTimeMs - window.startTimeMs >= WINDOW_DURATION_MS) {
+            this.mCurrentWindow = (this.mCurrentWindow + 1) % WINDOW_COUNT;
+
+            window = this.mWindows[this.mCurrentWindow];
+            window.reset(currentTimeMs);
+        }
+
+        return window;
+    }
+}
@@ -0,0 +1,363 @@
+// Copyright 2024 Peter Beverloo & AnimeCon. All rights reserved.
+// Use of this source code is governed by a MIT license that can be found in the LICENSE file.
+
+package team.animecon.display;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Process;
+import android.os.SystemClock;
+import android.util.Log;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.Calendar;
+import java.util.Locale;
+
+/**
+ * The `IdleController` puts the display in an idle mode outside of convention hours, to reduce the
+ * thermal load and power usage of the passively cooled tablets. While idle, the WebView's timers
+ * and rendering are paused, the light strip is shut off and the brightness is lowered to the
+ * minimum brightness supported by the `BrightnessController`. Auto brightness is suspended, and
+ * light commands that were scheduled are cancelled.
+ *
+ * Idle mode follows a daily schedule, which can be overridden from JavaScript. Touching the screen
+ * overrides the schedule as well, and immediately makes the display active again. Overrides last
+ * until the next transition in the schedule, or indefinitely while the schedule is disabled.
+ *
+ * Transitions are announced to the page through an `animeconidle` event, whose detail carries the
+ * new mode, so that it can restore state such as the light strip when the display becomes active.
+ */
+public class IdleController implements WebMessageListener.IdleDelegate {
+    private static final String TAG = "IdleController";
+
+    /**
+     * Interval at which the schedule will be evaluated.
+     */
+    private static final long EVALUATION_INTERVAL_MS = 30_000;
+
+    /**
+     * The modes that the display can be in.
+     */
+    private static final int MODE_ACTIVE = 0;
+    private static final int MODE_IDLE = 1;
+
+    /**
+     * The overrides that can apply on top of the schedule.
+     */
+    private static final int OVERRIDE_NONE = 0;
+    private static final int OVERRIDE_ACTIVE = 1;
+    private static final int OVERRIDE_IDLE = 2;
+
+    /**
+     * The controllers that will be manipulated when entering and leaving idle mode.
+     */
+    private final AutoBrightnessController mAutoBrightnessController;
+    private final BrightnessController mBrightnessController;
+    private final LightController mLightController;
+    private final WebViewController mWebViewController;
+
+    /**
+     * Handler through which the schedule will periodically be evaluated on the main thread.
+     */
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+    private final Runnable mEvaluateRunnable = new Runnable() {
+        @Override
+        public void run() {
+            IdleController.this.evaluate();
+            IdleController.this.mHandler.postDelayed(this, EVALUATION_INTERVAL_MS);
+        }
+    };
+
+    /**
+     * The schedule, expressed in minutes since midnight in local time. Idle mode starts at
+     * `mIdleStartMinute` and ends at `mIdleEndMinute`, which may be on the following day. The
+     * schedule is disabled when both are equal.
+     */
+    private int mIdleStartMinute;
+    private int mIdleEndMinute;
+
+    /**
+     * The override that's currently in effect, and the time (in milliseconds since the epoch) at
+     * which it will expire. Overrides never expire while the schedule is disabled.
+     */
+    private int mOverride = OVERRIDE_NONE;
+    private long mOverrideExpiration = 0;
+
+    /**
+     * The current mode, and the brightness that will be restored when idle mode is left.
+     */
+    private int mMode = MODE_ACTIVE;
+    private int mActiveBrightness = -1;
+
+    /**
+     * Wall time and process CPU time spent in each of the modes, in milliseconds, together with the
+     * values of both clocks at the time the current mode was entered. CPU time of the WebView's
+     * renderer process is not included, as it runs in a separate process.
+     */
+    private final long[] mWallTimeMs = new long[2];
+    private final long[] mCpuTimeMs = new long[2];
+    private int mTransitionCount = 0;
+
+    private long mModeStartWallTimeMs;
+    private long mModeStartCpuTimeMs;
+
+    public IdleController(
+            AutoBrightnessController autoBrightnessController,
+            BrightnessController brightnessController, LightController lightController,
+            WebViewController webViewController, int idleStartMinute, int idleEndMinute) {
+        this.mAutoBrightnessController = autoBrightnessController;
+        this.mBrightnessController = brightnessController;
+        this.mLightController = lightController;
+        this.mWebViewController = webViewController;
+        this.mIdleStartMinute = idleStartMinute;
+        this.mIdleEndMinute = idleEndMinute;
+    }
+
+    /**
+     * Initialises the controller, and starts evaluating the schedule.
+     */
+    public void initialise() {
+        this.mModeStartWallTimeMs = SystemClock.elapsedRealtime();
+        this.mModeStartCpuTimeMs = Process.getElapsedCpuTime();
+
+        this.mHandler.post(this.mEvaluateRunnable);
+    }
+
+    /**
+     * Returns whether the display is currently in idle mode.
+     */
+    @Override
+    public boolean isIdle() {
+        return this.mMode == MODE_IDLE;
+    }
+
+    /**
+     * Updates the schedule to start idle mode at `startMinute` and end at `endMinute`, both in
+     * minutes since midnight. Setting both to the same value disables the schedule.
+     */
+    @Override
+    public boolean setSchedule(int startMinute, int endMinute) {
+        if (startMinute < 0 || startMinute >= 24 * 60 || endMinute < 0 || endMinute >= 24 * 60)
+            return false;
+
+        this.mIdleStartMinute = startMinute;
+        this.mIdleEndMinute = endMinute;
+
+        // Overrides last until the next transition, which may have moved.
+        if (this.mOverride != OVERRIDE_NONE)
+            this.mOverrideExpiration = this.computeOverrideExpiration();
+
+        this.evaluate();
+        return true;
+    }
+
+    /**
+     * Immediately enters idle mode, until the next transition in the schedule.
+     */
+    @Override
+    public void enterIdle() {
+        this.setOverride(OVERRIDE_IDLE);
+    }
+
+    /**
+     * Immediately leaves idle mode, until the next transition in the schedule.
+     */
+    @Override
+    public void exitIdle() {
+        this.setOverride(OVERRIDE_ACTIVE);
+    }
+
+    /**
+     * Removes any override, which makes the display follow the schedule again.
+     */
+    @Override
+    public void clearOverride() {
+        this.mOverride = OVERRIDE_NONE;
+        this.evaluate();
+    }
+
+    /**
+     * Remembers the `brightness` requested while in idle mode, to be applied when the display
+     * becomes active again rather than right away. Returns whether the brightness was deferred,
+     * which is not the case when the display is active.
+     */
+    @Override
+    public boolean deferBrightness(int brightness) {
+        if (this.mMode != MODE_IDLE)
+            return false;
+
+        this.mActiveBrightness = brightness;
+        return true;
+    }
+
+    /**
+     * To be called when the user has interacted with the display. Returns whether the interaction
+     * woke the display up from idle mode, in which case it should not be handled any further.
+     */
+    public boolean onUserInteraction() {
+        if (this.mMode != MODE_IDLE)
+            return false;
+
+        this.exitIdle();
+        return true;
+    }
+
+    /**
+     * Returns the state of the controller, including the time spent in each mode, as JSON.
+     */
+    @Override
+    public JSONObject toJson() throws JSONException {
+        this.accumulateTime();
+
+        JSONObject result = new JSONObject();
+        result.put("mode", this.mMode == MODE_IDLE ? "idle" : "active");
+        result.put("override", this.mOverride == OVERRIDE_NONE
+                ? "none" : (this.mOverride == OVERRIDE_IDLE ? "idle" : "active"));
+        result.put("schedule", formatMinute(this.mIdleStartMinute) + "-" +
+                formatMinute(this.mIdleEndMinute));
+        result.put("transitions", this.mTransitionCount);
+
+        String[] modeNames = new String[] { "active", "idle" };
+        for (int mode = MODE_ACTIVE; mode <= MODE_IDLE; ++mode) {
+            JSONObject modeJson = new JSONObject();
+            modeJson.put("wallMs", this.mWallTimeMs[mode]);
+            modeJson.put("cpuMs", this.mCpuTimeMs[mode]);
+            modeJson.put("cpuRatio", this.mWallTimeMs[mode] > 0
+                    ? this.mCpuTimeMs[mode] / (double) this.mWallTimeMs[mode] : 0);
+
+            result.put(modeNames[mode], modeJson);
+        }
+
+        return result;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Sets the given `override`, which will expire at the next transition in the schedule.
+     */
+    private void setOverride(int override) {
+        this.mOverride = override;
+        this.mOverrideExpiration = this.computeOverrideExpiration();
+        this.evaluate();
+    }
+
+    /**
+     * Returns the time (in milliseconds since the epoch) of the next transition in the schedule, or
+     * `Long.MAX_VALUE` when the schedule is disabled and there won't be one.
+     */
+    private long computeOverrideExpiration() {
+        if (this.mIdleStartMinute == this.mIdleEndMinute)
+            return Long.MAX_VALUE;
+
+        Calendar calendar = Calendar.getInstance();
+        int currentMinute =
+                calendar.get(Calendar.HOUR_OF_DAY) * 60 + calendar.get(Calendar.MINUTE);
+
+        int nextTransitionMinute = this.isScheduledIdle(currentMinute)
+                ? this.mIdleEndMinute : this.mIdleStartMinute;
+
+        int minutesUntilTransition = (nextTransitionMinute - currentMinute + 24 * 60) % (24 * 60);
+        if (minutesUntilTransition == 0)
+            minutesUntilTransition = 24 * 60;
+
+        calendar.set(Calendar.SECOND, 0);
+        calendar.set(Calendar.MILLISECOND, 0);
+        calendar.add(Calendar.MINUTE, minutesUntilTransition);
+
+        return calendar.getTimeInMillis();
+    }
+
+    /**
+     * Returns whether the schedule says that the display should be idle at the `minute`.
+     */
+    private boolean isScheduledIdle(int minute) {
+        if (this.mIdleStartMinute == this.mIdleEndMinute)
+            return false;  // the schedule has been disabled
+
+        if (this.mIdleStartMinute < this.mIdleEndMinute)
+            return minute >= this.mIdleStartMinute && minute < this.mIdleEndMinute;
+
+        return minute >= this.mIdleStartMinute || minute < this.mIdleEndMinute;
+    }
+
+    /**
+     * Determines the mode that the display should be in, and transitions when necessary.
+     */
+    private void evaluate() {
+        if (this.mOverride != OVERRIDE_NONE &&
+                System.currentTimeMillis() >= this.mOverrideExpiration) {
+            this.mOverride = OVERRIDE_NONE;
+        }
+
+        int mode;
+        switch (this.mOverride) {
+            case OVERRIDE_ACTIVE:
+                mode = MODE_ACTIVE;
+                break;
+            case OVERRIDE_IDLE:
+                mode = MODE_IDLE;
+                break;
+            default:
+                Calendar calendar = Calendar.getInstance();
+                int currentMinute =
+                        calendar.get(Calendar.HOUR_OF_DAY) * 60 + calendar.get(Calendar.MINUTE);
+
+                mode = this.isScheduledIdle(currentMinute) ? MODE_IDLE : MODE_ACTIVE;
+                break;
+        }
+
+        if (mode == this.mMode)
+            return;
+
+        this.accumulateTime();
+        this.mMode = mode;
+        this.mTransitionCount++;
+
+        if (mode == MODE_IDLE) {
+            Log.i(TAG, "Entering idle mode");
+
+            // Dispatched before pausing, as the page's scripts won't run while it's paused.
+            this.mWebViewController.dispatchEvent("animeconidle", "{ \"mode\": \"idle\" }");
+            this.mWebViewController.pause();
+            this.mLightController.cancelScheduled();
+            this.mLightController.off();
+            this.mAutoBrightnessController.setSuspended(true);
+
+            this.mActiveBrightness = this.mBrightnessController.getBrightness();
+            this.mBrightnessController.update(this.mBrightnessController.getMinimumBrightness());
+        } else {
+            Log.i(TAG, "Leaving idle mode");
+
+            this.mWebViewController.resume();
+            if (this.mActiveBrightness >= 0)
+                this.mBrightnessController.update(this.mActiveBrightness);
+
+            this.mAutoBrightnessController.setSuspended(false);
+            this.mWebViewController.dispatchEvent("animeconidle", "{ \"mode\": \"active\" }");
+        }
+    }
+
+    /**
+     * Attributes the wall and CPU time since the last call to the current mode.
+     */
+    private void accumulateTime() {
+        long wallTimeMs = SystemClock.elapsedRealtime();
+        long cpuTimeMs = Process.getElapsedCpuTime();
+
+        this.mWallTimeMs[this.mMode] += wallTimeMs - this.mModeStartWallTimeMs;
+        this.mCpuTimeMs[this.mMode] += cpuTimeMs - this.mModeStartCpuTimeMs;
+
+        this.mModeStartWallTimeMs = wallTimeMs;
+        this.mModeStartCpuTimeMs = cpuTimeMs;
+    }
+
+    /**
+     * Formats the given `minute` since midnight as a HH:MM string.
+     */
+    private static String formatMinute(int minute) {
+        return String.format(Locale.US, "%02d:%02d", minute / 60, minute % 60);
+    }
+}
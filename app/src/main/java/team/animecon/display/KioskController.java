@@ -15,7 +15,7 @@ import android.view.View;
  * be controlled from JavaScript, so that the default device state (e.g. network issues) leads to
  * the full device continuing to be accessible.
  */
-public class KioskController {
+public class KioskController implements WebMessageListener.KioskDelegate {
     private static final String TAG = "KioskController";
     /**
      * The Android Activity for which Kiosk mode is being controlled.
@@ -60,6 +60,7 @@ public class KioskController {
      * Hides the user interface for the application. We do this regardless of whether kiosk mode is
      * activated, which really provides a secondary certainty step on top of this.
      */
+    @Override
     public void hideUserInterface() {
         mDecorView.setSystemUiVisibility(
                 View.SYSTEM_UI_FLAG_LAYOUT_STABLE
@@ -73,6 +74,7 @@ public class KioskController {
     /**
      * Enables the kiosk mode for the running app.
      */
+    @Override
     public boolean enable() {
         if (!mDevicePolicyManager.isLockTaskPermitted(this.mActivity.getPackageName())) {
             return false;
@@ -85,6 +87,7 @@ public class KioskController {
     /**
      * Disables the kiosk mode for the running app.
      */
+    @Override
     public boolean disable() {
         mActivity.stopLockTask();
         return true;
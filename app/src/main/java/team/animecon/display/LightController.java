@@ -3,17 +3,24 @@
 
 package team.animecon.display;
 
+import android.os.Handler;
+import android.os.Looper;
 import android.os.SystemClock;
 import android.util.Log;
 
+import org.json.JSONException;
+import org.json.JSONObject;
+
 import java.io.FileDescriptor;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
+import java.io.IOException;
 
 /**
  * The `LightController` class is used to communicate with the LED strip around the Display, which
- * is a serial device exposed on `/dev/ttyS3` at 9600 baud. The actual input/output will be managed
- * by JavaScript to maintain flexibility in updating our behaviour.
+ * is a serial device exposed on `/dev/ttyS3` at 9600 baud by default. The actual input/output will
+ * be managed by JavaScript to maintain flexibility in updating our behaviour, which includes the
+ * configuration of the serial port for firmware that supports higher baud rates.
  *
  * The hardware in the displays we use supports the following commands:
  *
@@ -22,56 +29,316 @@ import java.io.FileOutputStream;
  *   CRAZY:{SECONDS}                          - Enable the "crazy" mode.
  *   FLASH:{SECONDS}                          - Enable the "flash" mode.
  *   CLOSE:{RED,GREEN,BLUE}                   - Shuts off the given colour(s) entirely.
+ *
+ * The serial link is supervised once it has been opened. The last command sent for each of the
+ * colours is remembered together with the time it was sent, so that the strip's state can be
+ * restored when the link is reopened. Timed commands are restored for their remaining duration,
+ * and not at all when they have already finished.
+ *
+ * Commands can also be scheduled for a precise moment on the monotonic clock, which allows effects
+ * to fire in sync across the fleet. Scheduled commands are written from a background thread.
+ *
+ * The strip drops commands that follow each other too closely, so all writes go through a single
+ * writer that keeps them at least `COMMAND_GAP_MS` apart, regardless of the thread they're sent
+ * from. Commands that are sent as a sequence are not interleaved with other writes.
  */
-public class LightController implements SerialPortObserver {
+public class LightController implements
+        SerialLinkSupervisor.Delegate, SerialPortObserver, WebMessageListener.LightDelegate {
     private static final String TAG = "LightController";
 
     /**
-     * The serial port that will be used for communicating with the light.
+     * The colours supported by the light strip, in the order in which they will be restored.
+     */
+    private static final String[] COLOURS = new String[] { "RED", "GREEN", "BLUE" };
+
+    /**
+     * Minimum time between the end of a write and the start of the next one.
+     */
+    static final long COMMAND_GAP_MS = 50;
+
+    /**
+     * The serial port that will be used for communicating with the light, and the supervisor that
+     * keeps the link with it alive.
      */
     private final SerialPort mSerialPort;
+    private final SerialLinkSupervisor mSupervisor;
+
+    /**
+     * Scheduler through which commands can be sent at a precise time, and a handler through which
+     * errors that occur on its thread are forwarded to the main thread.
+     */
+    private final MonotonicScheduler mScheduler = new MonotonicScheduler(TAG);
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+
+    /**
+     * Lock held while writing to the strip, including the gap before each write, and the time at
+     * which the last write finished. Sequences of commands hold it for their entire duration.
+     */
+    private final Object mWriteLock = new Object();
+    private long mLastWriteTimeMs = -COMMAND_GAP_MS;
+
+    /**
+     * The last LIVE, KEEP or CLOSE command sent for each of the `COLOURS`, together with the time
+     * at which it was sent and its duration in seconds, where zero means that it lasts
+     * indefinitely. Guarded by `mColourCommands`.
+     */
+    private final String[] mColourCommands = new String[COLOURS.length];
+    private final long[] mColourCommandTimesMs = new long[COLOURS.length];
+    private final int[] mColourCommandDurations = new int[COLOURS.length];
+
+    /**
+     * Observer that should be informed about changes in the serial link's status, if any.
+     */
+    private LightStatusObserver mStatusObserver;
 
     public LightController(String device, int baudRate) {
-        this.mSerialPort = new SerialPort(device, baudRate, this);
+        this.mSerialPort = new SerialPort(device, new SerialPortConfig(baudRate), this);
+        this.mSupervisor = new SerialLinkSupervisor(this.mSerialPort, this);
     }
 
     /**
-     * Opens the serial port connection with the device.
+     * Sets the `observer` that should be informed about changes in the serial link's status.
      */
+    public void setStatusObserver(LightStatusObserver observer) {
+        this.mStatusObserver = observer;
+    }
+
+    /**
+     * Opens the serial port connection with the device. The link will be supervised, even when it
+     * cannot be opened right away.
+     */
+    @Override
     public boolean open() {
-        return this.mSerialPort.open();
+        boolean result = this.mSerialPort.open();
+        if (result || this.mSupervisor.getStatus() == SerialLinkSupervisor.STATUS_CLOSED)
+            this.mSupervisor.start();
+
+        return result;
     }
 
     /**
      * Updates the light bar colour to the given `red`, `green` and `blue` RGB values.
      */
+    @Override
     public boolean set(int red, int green, int blue) {
-        this.sendCommand("KEEP:RED:0:" + red);
-        SystemClock.sleep(40);
-        this.sendCommand("KEEP:GREEN:0:" + green);
-        SystemClock.sleep(50);
-        return this.sendCommand("KEEP:BLUE:0:" + blue);
+        synchronized (this.mWriteLock) {
+            this.sendCommand("KEEP:RED:0:" + red);
+            this.sendCommand("KEEP:GREEN:0:" + green);
+            return this.sendCommand("KEEP:BLUE:0:" + blue);
+        }
+    }
+
+    /**
+     * Shuts off all colours of the light bar, which also stops any running effect.
+     */
+    public boolean off() {
+        synchronized (this.mWriteLock) {
+            this.sendCommand("CLOSE:RED");
+            this.sendCommand("CLOSE:GREEN");
+            return this.sendCommand("CLOSE:BLUE");
+        }
     }
 
     /**
      * Sends a command to the device's lights. This should be replaced by a far more sensible API
      * that allows input/output from JavaScript.
      */
+    @Override
     public boolean sendCommand(String command) {
-        return this.mSerialPort.write(command);
+        this.rememberCommand(command);
+        return this.write(command);
     }
 
     /**
-     * Closes the serial port connection with the device.
+     * Schedules the `command` to be sent at `targetTimeNs`, comparable with the value of
+     * `SystemClock.elapsedRealtimeNanos()`.
      */
+    @Override
+    public void schedule(final String command, long targetTimeNs) {
+        this.mScheduler.schedule(new Runnable() {
+            @Override
+            public void run() {
+                LightController.this.sendCommand(command);
+            }
+        }, targetTimeNs);
+    }
+
+    /**
+     * Cancels all scheduled commands that have not been sent yet.
+     */
+    @Override
+    public void cancelScheduled() {
+        this.mScheduler.cancelAll();
+    }
+
+    /**
+     * Closes the serial port connection with the device, which stops supervision of the link.
+     */
+    @Override
     public boolean close() {
+        this.mSupervisor.stop();
         return this.mSerialPort.close();
     }
 
+    /**
+     * Returns the configuration of the serial port.
+     */
+    @Override
+    public SerialPortConfig getSerialConfig() {
+        return this.mSerialPort.getConfig();
+    }
+
+    /**
+     * Reconfigures the serial port with the given `config`. Takes effect immediately when the port
+     * is open, and will also be used when the link is reopened by the supervisor.
+     */
+    @Override
+    public void configureSerial(SerialPortConfig config) throws IOException {
+        this.mSerialPort.configure(config);
+    }
+
+    /**
+     * Returns the status of the serial link and of scheduled commands as JSON.
+     */
+    @Override
+    public JSONObject getStatus() throws JSONException {
+        JSONObject result = this.mSupervisor.toJson();
+        result.put("scheduler", this.mScheduler.toJson());
+        return result;
+    }
+
+    /**
+     * Remembers the given `command` when it determines the persistent state of one of the colours.
+     * LIVE and KEEP commands carry their duration in seconds as the third field.
+     */
+    private void rememberCommand(String command) {
+        if (!command.startsWith("LIVE:") && !command.startsWith("KEEP:") &&
+                !command.startsWith("CLOSE:")) {
+            return;
+        }
+
+        String[] fields = command.split(":", -1);
+
+        int durationSeconds = 0;
+        if (!fields[0].equals("CLOSE")) {
+            if (fields.length < 3)
+                return;
+
+            try {
+                durationSeconds = Integer.parseInt(fields[2]);
+            } catch (NumberFormatException e) {
+                return;
+            }
+
+            if (durationSeconds < 0)
+                return;
+        }
+
+        for (int index = 0; index < COLOURS.length; ++index) {
+            if (!fields[1].equals(COLOURS[index]))
+                continue;
+
+            synchronized (this.mColourCommands) {
+                this.mColourCommands[index] = command;
+                this.mColourCommandTimesMs[index] = SystemClock.elapsedRealtime();
+                this.mColourCommandDurations[index] = durationSeconds;
+            }
+            break;
+        }
+    }
+
+    /**
+     * Writes the `command` to the strip once at least `COMMAND_GAP_MS` have passed since the
+     * previous write finished. Blocks the calling thread until then.
+     */
+    private boolean write(String command) {
+        synchronized (this.mWriteLock) {
+            long waitMs = this.mLastWriteTimeMs + COMMAND_GAP_MS - SystemClock.elapsedRealtime();
+            if (waitMs > 0)
+                SystemClock.sleep(waitMs);
+
+            boolean result = this.mSerialPort.write(command);
+            this.mLastWriteTimeMs = SystemClock.elapsedRealtime();
+            return result;
+        }
+    }
+
+    /**
+     * Returns the remembered `command` adjusted for the `elapsedMs` since it was sent, or NULL when
+     * its `durationSeconds` have already passed. The remaining duration is rounded up.
+     */
+    private static String toRemainingCommand(String command, int durationSeconds, long elapsedMs) {
+        if (durationSeconds == 0)
+            return command;  // CLOSE, or a command that lasts indefinitely
+
+        long remainingSeconds = (durationSeconds * 1000L - elapsedMs + 999) / 1000;
+        if (remainingSeconds <= 0)
+            return null;
+
+        String[] fields = command.split(":", -1);
+        fields[2] = String.valueOf(remainingSeconds);
+
+        return String.join(":", fields);
+    }
+
     // ---------------------------------------------------------------------------------------------
 
     @Override
-    public void onError(String operation, String message) {
+    public void onLinkRestored() {
+        String[] colourCommands;
+        long[] colourCommandTimesMs;
+        int[] colourCommandDurations;
+        synchronized (this.mColourCommands) {
+            colourCommands = this.mColourCommands.clone();
+            colourCommandTimesMs = this.mColourCommandTimesMs.clone();
+            colourCommandDurations = this.mColourCommandDurations.clone();
+        }
+
+        synchronized (this.mWriteLock) {
+            long currentTimeMs = SystemClock.elapsedRealtime();
+            for (int index = 0; index < colourCommands.length; ++index) {
+                if (colourCommands[index] == null)
+                    continue;
+
+                String command = toRemainingCommand(colourCommands[index],
+                        colourCommandDurations[index], currentTimeMs - colourCommandTimesMs[index]);
+                if (command == null)
+                    continue;  // the command has finished by now
+
+                this.write(command);
+            }
+        }
+    }
+
+    @Override
+    public void onLinkStatusChanged() {
+        if (this.mStatusObserver == null)
+            return;
+
+        try {
+            this.mStatusObserver.onLightStatusChanged(this.mSupervisor.toJson().toString());
+        } catch (JSONException e) {
+            Log.e(TAG, "Unable to serialise the link status: " + e.getMessage());
+        }
+    }
+
+    @Override
+    public void onError(String operation, final String message) {
         Log.e(TAG, "Error (" + operation + "): " + message);
+        if (!operation.equals("write"))
+            return;
+
+        // The supervisor lives on the main thread, whereas scheduled commands are written from the
+        // scheduler's thread.
+        if (Looper.myLooper() == Looper.getMainLooper()) {
+            this.mSupervisor.onWriteFailed(message);
+        } else {
+            this.mMainHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    LightController.this.mSupervisor.onWriteFailed(message);
+                }
+            });
+        }
     }
 }
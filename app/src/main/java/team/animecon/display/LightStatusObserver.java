@@ -0,0 +1,14 @@
+// Copyright 2024 Peter Beverloo & AnimeCon. All rights reserved.
+// Use of this source code is governed by a MIT license that can be found in the LICENSE file.
+
+package team.animecon.display;
+
+/**
+ * Interface defining the callbacks related to the status of the light strip's serial link.
+ */
+public interface LightStatusObserver {
+    /**
+     * To be called when the status of the serial link has changed. The `status` is a JSON string.
+     */
+    void onLightStatusChanged(String status);
+}
@@ -5,9 +5,6 @@ package team.animecon.display;
 
 import androidx.annotation.NonNull;
 import androidx.appcompat.app.AppCompatActivity;
-import androidx.webkit.WebViewClientCompat;
-import androidx.webkit.WebViewCompat;
-import androidx.webkit.WebViewFeature;
 
 import android.annotation.SuppressLint;
 import android.app.Activity;
@@ -15,16 +12,11 @@ import android.app.AlarmManager;
 import android.app.PendingIntent;
 import android.content.Context;
 import android.content.Intent;
-import android.graphics.Color;
 import android.os.Bundle;
-import android.webkit.CookieManager;
-import android.webkit.WebSettings;
-import android.webkit.WebView;
+import android.view.MotionEvent;
 
 import java.io.PrintWriter;
 import java.io.StringWriter;
-import java.util.Collections;
-import java.util.HashSet;
 
 import team.animecon.display.databinding.ActivityMainBinding;
 
@@ -35,13 +27,23 @@ public class MainActivity extends AppCompatActivity {
         System.loadLibrary("display");
     }
 
+    private AutoBrightnessController mAutoBrightnessController;
+    private BridgeRecorder mBridgeRecorder;
+    private BridgeReplayer mBridgeReplayer;
     private BrightnessController mBrightnessController;
+    private ClockOffsetEstimator mClockOffsetEstimator;
+    private FrameMonitor mFrameMonitor;
+    private IdleController mIdleController;
     private KioskController mKioskController;
     private LightController mLightController;
     private VolumeController mVolumeController;
+    private WebViewController mWebViewController;
 
     private WebMessageListener mWebMessageListener;
 
+    // Whether the current touch gesture woke the display up, and thus should not reach the page.
+    private boolean mSuppressGesture = false;
+
     private ActivityMainBinding binding;
 
 
@@ -49,52 +51,51 @@ public class MainActivity extends AppCompatActivity {
     protected void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
 
+        this.mBridgeRecorder = new BridgeRecorder(this);
+        this.mBridgeReplayer = new BridgeReplayer(this.mBridgeRecorder);
         this.mBrightnessController = new BrightnessController(this, 5);
+        this.mAutoBrightnessController =
+                new AutoBrightnessController(this, this.mBrightnessController);
+        this.mClockOffsetEstimator = new ClockOffsetEstimator();
+        this.mFrameMonitor = new FrameMonitor(this);
         this.mKioskController = new KioskController(this);
         this.mLightController = new LightController("/dev/ttyS3", 9600);
         this.mVolumeController = new VolumeController(this);
 
-        this.mWebMessageListener = new WebMessageListener(
-                this.mBrightnessController, this.mKioskController, this.mLightController,
-                this.mVolumeController);
-
         binding = ActivityMainBinding.inflate(getLayoutInflater());
         setContentView(binding.getRoot());
 
-        this.mBrightnessController.initialise();
-        this.mKioskController.initialise();
-
-        // Initialise WebView:
-        {
-            WebView webView = binding.webview;
-            webView.setBackgroundColor(Color.parseColor("#211a1a"));
+        this.mWebViewController =
+                new WebViewController(this, binding.webview, "https://animecon.team/display");
 
-            WebSettings webSettings = webView.getSettings();
-            webSettings.setDomStorageEnabled(true);
-            webSettings.setJavaScriptEnabled(true);
-            webSettings.setMediaPlaybackRequiresUserGesture(false);
+        // Idle mode is entered between 02:00 and 07:00, in between convention days.
+        this.mIdleController = new IdleController(
+                this.mAutoBrightnessController, this.mBrightnessController, this.mLightController,
+                this.mWebViewController, /* idleStartMinute= */ 2 * 60,
+                /* idleEndMinute= */ 7 * 60);
 
-            HashSet<String> allowedOriginRules =
-                    new HashSet<String>(Collections.singletonList("*"));
+        this.mWebMessageListener = new WebMessageListener(
+                this.mAutoBrightnessController, this.mBrightnessController,
+                this.mClockOffsetEstimator, this.mFrameMonitor, this.mIdleController,
+                this.mKioskController, this.mLightController, this.mVolumeController,
+                this.mWebViewController, this.mBridgeRecorder, this.mBridgeReplayer);
 
-            if (WebViewFeature.isFeatureSupported(WebViewFeature.WEB_MESSAGE_LISTENER)) {
-                WebViewCompat.addWebMessageListener(
-                        webView, "animeCon", allowedOriginRules,
-                        this.mWebMessageListener);
+        // Changes in the status of the light strip's serial link are pushed to the page.
+        this.mLightController.setStatusObserver(new LightStatusObserver() {
+            @Override
+            public void onLightStatusChanged(String status) {
+                MainActivity.this.mWebViewController.dispatchEvent("animeconlightstatus", status);
             }
+        });
 
-            CookieManager.getInstance().setAcceptCookie(true);
-
-            webView.setWebViewClient(new WebViewClientCompat()
-            {
-                // no behaviour necessary (yet)
-            });
-        }
+        this.mBrightnessController.initialise();
+        this.mKioskController.initialise();
 
         // Always hide the user interface. Kiosk mode can be enabled independently.
         this.mKioskController.hideUserInterface();
 
-        // Open the serial port with the light controller. It can be re-opened programmatically.
+        // Open the serial port with the light controller. It can be re-opened programmatically, and
+        // will be reopened automatically when the link is lost.
         this.mLightController.open();
 
         // Attach an uncaught exception handler to automagically restart the app when a crash is
@@ -126,6 +127,42 @@ public class MainActivity extends AppCompatActivity {
 
         // Load the Volunteer Manager's display subapp. Provisioning of the display will have to
         // be done by one of the volunteering leads, until that moment it's idle.
-        binding.webview.loadUrl("https://animecon.team/display");
+        this.mWebViewController.initialise(this.mWebMessageListener);
+        this.mIdleController.initialise();
+    }
+
+    @Override
+    protected void onPause() {
+        super.onPause();
+
+        // No frames are produced while paused, which should not be recorded as a stall.
+        this.mFrameMonitor.onPause();
+    }
+
+    @Override
+    protected void onResume() {
+        super.onResume();
+        this.mFrameMonitor.onResume();
+    }
+
+    @Override
+    public boolean dispatchTouchEvent(MotionEvent event) {
+        // The first touch on an idle display wakes it up, and should not activate the page.
+        if (event.getActionMasked() == MotionEvent.ACTION_DOWN)
+            this.mSuppressGesture = this.mIdleController.onUserInteraction();
+
+        if (this.mSuppressGesture)
+            return true;
+
+        return super.dispatchTouchEvent(event);
+    }
+
+    @Override
+    public void onTrimMemory(int level) {
+        super.onTrimMemory(level);
+
+        // Renderer crashes are handled by the WebViewController without involving the crash
+        // handler above. Memory pressure is dealt with there as well.
+        this.mWebViewController.onTrimMemory(level);
     }
 }
\ No newline at end of file
@@ -0,0 +1,149 @@
+// Copyright 2024 Peter Beverloo & AnimeCon. All rights reserved.
+// Use of this source code is governed by a MIT license that can be found in the LICENSE file.
+
+package team.animecon.display;
+
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Process;
+import android.os.SystemClock;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * The `MonotonicScheduler` executes tasks at a precise time on the monotonic clock, as given by
+ * `SystemClock.elapsedRealtimeNanos()`. Tasks are posted to a high priority background thread
+ * slightly ahead of time, after which the thread spins until the exact moment has arrived. This
+ * trades a few milliseconds of CPU time for sub-millisecond precision, where a Handler by itself
+ * could be late by several milliseconds.
+ *
+ * The background thread is started when the first task is scheduled. Thread safe.
+ */
+public class MonotonicScheduler {
+    /**
+     * Tasks will be woken up this far ahead of their time, after which the thread spins.
+     */
+    private static final long SPIN_DURATION_NS = 3_000_000;
+
+    /**
+     * Name of the background thread, which will be created on demand.
+     */
+    private final String mName;
+    private Handler mHandler;
+
+    /**
+     * Token with which all tasks are posted, so that they can be cancelled together, and the
+     * generation of tasks that may still execute. Tasks that were already running when they were
+     * cancelled check the generation they were posted in. Guarded by `this`.
+     */
+    private final Object mToken = new Object();
+    private int mGeneration = 0;
+
+    /**
+     * Statistics about the executed tasks. Guarded by `this`.
+     */
+    private int mPendingCount = 0;
+    private int mExecutedCount = 0;
+    private long mLastLatenessNs = 0;
+    private long mMaximumLatenessNs = 0;
+
+    public MonotonicScheduler(String name) {
+        this.mName = name;
+    }
+
+    /**
+     * Schedules the `task` to be executed at `targetTimeNs`. Tasks whose time has passed will be
+     * executed right away.
+     */
+    public synchronized void schedule(Runnable task, long targetTimeNs) {
+        if (this.mHandler == null) {
+            HandlerThread thread =
+                    new HandlerThread(this.mName, Process.THREAD_PRIORITY_URGENT_DISPLAY);
+            thread.start();
+
+            this.mHandler = new Handler(thread.getLooper());
+        }
+
+        this.mPendingCount++;
+        this.post(task, targetTimeNs);
+    }
+
+    /**
+     * Cancels all tasks that have not been executed yet, including one that is waiting for its
+     * exact time on the background thread.
+     */
+    public synchronized void cancelAll() {
+        if (this.mHandler != null)
+            this.mHandler.removeCallbacksAndMessages(this.mToken);
+
+        this.mGeneration++;
+        this.mPendingCount = 0;
+    }
+
+    /**
+     * Returns statistics about the scheduled and executed tasks as JSON.
+     */
+    public synchronized JSONObject toJson() throws JSONException {
+        JSONObject result = new JSONObject();
+        result.put("pending", this.mPendingCount);
+        result.put("executed", this.mExecutedCount);
+        result.put("lastLatenessMs", this.mLastLatenessNs / 1_000_000.0);
+        result.put("maxLatenessMs", this.mMaximumLatenessNs / 1_000_000.0);
+        return result;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Posts the `task` to wake up ahead of the `targetTimeNs`. The Handler works in uptime, which
+     * does not advance during deep sleep, so the delay is computed relative to the current time.
+     * Must be called while holding the lock.
+     */
+    private void post(final Runnable task, final long targetTimeNs) {
+        long delayNs = targetTimeNs - SystemClock.elapsedRealtimeNanos() - SPIN_DURATION_NS;
+        long uptimeMs = SystemClock.uptimeMillis() + Math.max(0, delayNs / 1_000_000);
+
+        final int generation = this.mGeneration;
+        this.mHandler.postAtTime(new Runnable() {
+            @Override
+            public void run() {
+                MonotonicScheduler.this.execute(task, targetTimeNs, generation);
+            }
+        }, this.mToken, uptimeMs);
+    }
+
+    /**
+     * Spins until the `targetTimeNs` has arrived, and then executes the `task`, unless it has been
+     * cancelled since it was posted in the given `generation`. Runs on the background thread.
+     */
+    private void execute(Runnable task, long targetTimeNs, int generation) {
+        long currentTimeNs = SystemClock.elapsedRealtimeNanos();
+        if (targetTimeNs - currentTimeNs > SPIN_DURATION_NS) {
+            synchronized (this) {
+                if (generation == this.mGeneration)
+                    this.post(task, targetTimeNs);  // woken up too early
+            }
+            return;
+        }
+
+        while (currentTimeNs < targetTimeNs)
+            currentTimeNs = SystemClock.elapsedRealtimeNanos();
+
+        synchronized (this) {
+            if (generation != this.mGeneration)
+                return;  // cancelled while spinning
+        }
+
+        task.run();
+
+        synchronized (this) {
+            long latenessNs = currentTimeNs - targetTimeNs;
+
+            this.mPendingCount = Math.max(0, this.mPendingCount - 1);
+            this.mExecutedCount++;
+            this.mLastLatenessNs = latenessNs;
+            this.mMaximumLatenessNs = Math.max(this.mMaximumLatenessNs, latenessNs);
+        }
+    }
+}
@@ -0,0 +1,252 @@
+// Copyright 2024 Peter Beverloo & AnimeCon. All rights reserved.
+// Use of this source code is governed by a MIT license that can be found in the LICENSE file.
+
+package team.animecon.display;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.util.Log;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * The `SerialLinkSupervisor` keeps the serial link with the light strip alive. Failed writes and
+ * periodic probes of the device file are used to detect problems with the link, after which the
+ * port will be closed and reopened with exponential backoff. The delegate is told when the link
+ * has been restored, so that the last known state of the strip can be replayed.
+ *
+ * All work happens on the main thread, which is where the serial port is being written to.
+ */
+public class SerialLinkSupervisor {
+    private static final String TAG = "SerialLinkSupervisor";
+
+    /**
+     * Interface through which the supervisor communicates with the owner of the serial port.
+     */
+    public interface Delegate {
+        /**
+         * To be called when the link has been restored after having been lost.
+         */
+        void onLinkRestored();
+
+        /**
+         * To be called when the status of the link has changed.
+         */
+        void onLinkStatusChanged();
+    }
+
+    /**
+     * The statuses the link can be in. The link is degraded while it's being reopened after having
+     * been lost, and down when the device is missing or reopening failed repeatedly.
+     */
+    public static final int STATUS_CLOSED = 0;
+    public static final int STATUS_UP = 1;
+    public static final int STATUS_DEGRADED = 2;
+    public static final int STATUS_DOWN = 3;
+
+    private static final String[] STATUS_NAMES =
+            new String[] { "closed", "up", "degraded", "down" };
+
+    /**
+     * Interval at which the device file will be probed while the link is up.
+     */
+    private static final long PROBE_INTERVAL_MS = 5_000;
+
+    /**
+     * Initial and maximum delays between attempts to reopen the link.
+     */
+    private static final long INITIAL_BACKOFF_MS = 500;
+    private static final long MAXIMUM_BACKOFF_MS = 30_000;
+
+    /**
+     * Number of failed attempts to reopen the link after which it will be considered to be down.
+     */
+    private static final int DEGRADED_ATTEMPTS = 3;
+
+    /**
+     * The serial port that's being supervised, and the delegate that should be informed.
+     */
+    private final SerialPort mSerialPort;
+    private final Delegate mDelegate;
+
+    /**
+     * Handler through which probes and attempts to reopen the link will be scheduled.
+     */
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+    private final Runnable mProbeRunnable = new Runnable() {
+        @Override
+        public void run() {
+            SerialLinkSupervisor.this.probe();
+        }
+    };
+    private final Runnable mReopenRunnable = new Runnable() {
+        @Override
+        public void run() {
+            SerialLinkSupervisor.this.reopen();
+        }
+    };
+
+    /**
+     * Current status of the link, and statistics about its lifetime. Reconnects are only counted
+     * once the link has been up before, so that the initial open isn't counted as one.
+     */
+    private int mStatus = STATUS_CLOSED;
+    private boolean mHasBeenUp = false;
+    private long mStatusTime = SystemClock.elapsedRealtime();
+    private int mReconnectCount = 0;
+    private int mFailedAttempts = 0;
+    private long mBackoffMs = INITIAL_BACKOFF_MS;
+    private String mLastError;
+
+    public SerialLinkSupervisor(SerialPort serialPort, Delegate delegate) {
+        this.mSerialPort = serialPort;
+        this.mDelegate = delegate;
+    }
+
+    /**
+     * Returns the current status of the link.
+     */
+    public int getStatus() {
+        return this.mStatus;
+    }
+
+    /**
+     * Starts supervising the link. When the serial port isn't open yet, attempts to open it will
+     * be made with backoff.
+     */
+    public void start() {
+        this.mHandler.removeCallbacks(this.mProbeRunnable);
+        this.mHandler.removeCallbacks(this.mReopenRunnable);
+
+        this.mFailedAttempts = 0;
+        this.mBackoffMs = INITIAL_BACKOFF_MS;
+
+        if (this.mSerialPort.isOpen()) {
+            this.setStatus(STATUS_UP);
+            this.mHandler.postDelayed(this.mProbeRunnable, PROBE_INTERVAL_MS);
+        } else {
+            this.setStatus(this.mSerialPort.isDeviceAvailable() ? STATUS_DEGRADED : STATUS_DOWN);
+            this.mHandler.postDelayed(this.mReopenRunnable, this.mBackoffMs);
+        }
+    }
+
+    /**
+     * Stops supervising the link, which has been closed deliberately.
+     */
+    public void stop() {
+        this.mHandler.removeCallbacks(this.mProbeRunnable);
+        this.mHandler.removeCallbacks(this.mReopenRunnable);
+
+        this.setStatus(STATUS_CLOSED);
+    }
+
+    /**
+     * To be called when writing to the serial port failed with the given `message`.
+     */
+    public void onWriteFailed(String message) {
+        this.mLastError = message;
+        if (this.mStatus != STATUS_UP)
+            return;  // already recovering, or deliberately closed
+
+        Log.w(TAG, "Writing to the serial port failed; reopening the link");
+        this.onLinkLost(STATUS_DEGRADED);
+    }
+
+    /**
+     * Returns the status of the link as JSON.
+     */
+    public JSONObject toJson() throws JSONException {
+        JSONObject result = new JSONObject();
+        result.put("status", STATUS_NAMES[this.mStatus]);
+        result.put("sinceMs", SystemClock.elapsedRealtime() - this.mStatusTime);
+        result.put("reconnects", this.mReconnectCount);
+        result.put("failedAttempts", this.mFailedAttempts);
+        if (this.mLastError != null)
+            result.put("lastError", this.mLastError);
+
+        return result;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Probes whether the device file is still available while the link is up.
+     */
+    private void probe() {
+        if (this.mStatus != STATUS_UP)
+            return;
+
+        if (!this.mSerialPort.isDeviceAvailable()) {
+            Log.w(TAG, "The serial device has disappeared");
+            this.mLastError = "The device is missing";
+            this.onLinkLost(STATUS_DOWN);
+            return;
+        }
+
+        this.mHandler.postDelayed(this.mProbeRunnable, PROBE_INTERVAL_MS);
+    }
+
+    /**
+     * Called when the link has been lost. Closes the port, and schedules an attempt to reopen it.
+     */
+    private void onLinkLost(int status) {
+        this.mHandler.removeCallbacks(this.mProbeRunnable);
+        this.mSerialPort.close();
+
+        this.mFailedAttempts = 0;
+        this.mBackoffMs = INITIAL_BACKOFF_MS;
+
+        this.setStatus(status);
+        this.mHandler.postDelayed(this.mReopenRunnable, this.mBackoffMs);
+    }
+
+    /**
+     * Attempts to reopen the link. Schedules another attempt with a longer delay when it fails.
+     */
+    private void reopen() {
+        if (this.mStatus == STATUS_CLOSED || this.mStatus == STATUS_UP)
+            return;
+
+        // The port may have been opened from JavaScript in the meantime.
+        if (this.mSerialPort.isOpen() ||
+                (this.mSerialPort.isDeviceAvailable() && this.mSerialPort.open())) {
+            Log.i(TAG, "The serial link has been restored");
+
+            if (this.mHasBeenUp)
+                this.mReconnectCount++;
+            this.mFailedAttempts = 0;
+            this.mBackoffMs = INITIAL_BACKOFF_MS;
+
+            this.setStatus(STATUS_UP);
+            this.mHandler.postDelayed(this.mProbeRunnable, PROBE_INTERVAL_MS);
+
+            this.mDelegate.onLinkRestored();
+            return;
+        }
+
+        this.mFailedAttempts++;
+        this.mBackoffMs = Math.min(this.mBackoffMs * 2, MAXIMUM_BACKOFF_MS);
+
+        if (this.mFailedAttempts >= DEGRADED_ATTEMPTS || !this.mSerialPort.isDeviceAvailable())
+            this.setStatus(STATUS_DOWN);
+
+        this.mHandler.postDelayed(this.mReopenRunnable, this.mBackoffMs);
+    }
+
+    /**
+     * Updates the status of the link to `status`, and informs the delegate when it changed.
+     */
+    private void setStatus(int status) {
+        if (this.mStatus == status)
+            return;
+
+        this.mStatus = status;
+        this.mStatusTime = SystemClock.elapsedRealtime();
+        if (status == STATUS_UP)
+            this.mHasBeenUp = true;
+
+        this.mDelegate.onLinkStatusChanged();
+    }
+}
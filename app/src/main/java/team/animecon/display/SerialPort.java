@@ -11,17 +11,24 @@ import java.io.IOException;
 /**
  * Class responsible for communicating with a particular serial port. Uses Cedric Priscal's C++
  * code for actually opening the port, and combines functionality from elsewhere to make it work.
+ * Operations are synchronized, as writes may be issued from a background thread as well.
  */
 public class SerialPort {
+    /**
+     * Time allowed for a write on top of the time it takes to transmit at the configured rate,
+     * after which it fails. Writes may be held off indefinitely when flow control is enabled.
+     */
+    private static final long WRITE_TIMEOUT_SLACK_MS = 100;
+
     /**
      * The device that should be connected to. (E.g. "/dev/ttyS3")
      */
     private final String mDevice;
 
     /**
-     * The baud rate indicating the rate of communication. (E.g. 9600)
+     * The configuration of the port, including the rate of communication. (E.g. 9600 baud)
      */
-    private final int mBaudRate;
+    private SerialPortConfig mConfig;
 
     /**
      * The observer that should be informed about events and lifetime changes of the port.
@@ -36,16 +43,54 @@ public class SerialPort {
     private FileInputStream mFileInputStream;
     private FileOutputStream mFileOutputStream;
 
-    public SerialPort(String device, int baudRate, SerialPortObserver observer) {
+    public SerialPort(String device, SerialPortConfig config, SerialPortObserver observer) {
         this.mDevice = device;
-        this.mBaudRate = baudRate;
+        this.mConfig = config;
         this.mObserver = observer;
     }
 
+    /**
+     * Returns the configuration that will be, or has been, applied to the port.
+     */
+    public synchronized SerialPortConfig getConfig() {
+        return this.mConfig;
+    }
+
+    /**
+     * Applies the given `config` to the port. When the port is open it will be reconfigured in
+     * place after pending output has been transmitted, which fails when that takes longer than a
+     * second. Otherwise the configuration will be used the next time the port is opened. The
+     * existing configuration is retained on failure.
+     */
+    public synchronized void configure(SerialPortConfig config) throws IOException {
+        if (this.mFd != null && this.mFileOutputStream != null) {
+            nativeConfigure(config.getBaudRate(), config.getDataBits(), config.getParity(),
+                    config.getStopBits(), config.getFlowControl(), config.getReadMinimum(),
+                    config.getReadTimeout());
+        }
+
+        this.mConfig = config;
+    }
+
+    /**
+     * Returns whether the device file exists, and is both readable and writable.
+     */
+    public boolean isDeviceAvailable() {
+        File deviceFile = new File(this.mDevice);
+        return deviceFile.exists() && deviceFile.canRead() && deviceFile.canWrite();
+    }
+
+    /**
+     * Returns whether a file descriptor to the device is currently open.
+     */
+    public synchronized boolean isOpen() {
+        return this.mFileOutputStream != null;
+    }
+
     /**
      * Opens a file descriptor to the device.
      */
-    public boolean open() {
+    public synchronized boolean open() {
         if (this.mFileInputStream != null) {
             return false;  // already open
         }
@@ -56,9 +101,14 @@ public class SerialPort {
             return false;
         }
 
-        this.mFd = nativeOpen(deviceFile.getAbsolutePath(), this.mBaudRate, 8, 0, 1, 0);
-        if (this.mFd == null) {
-            this.mObserver.onError("open", "A file descriptor to the device could not be opened.");
+        SerialPortConfig config = this.mConfig;
+        try {
+            this.mFd = nativeOpen(deviceFile.getAbsolutePath(), config.getBaudRate(),
+                    config.getDataBits(), config.getParity(), config.getStopBits(),
+                    config.getFlowControl(), config.getReadMinimum(), config.getReadTimeout(), 0);
+        } catch (IOException | IllegalArgumentException e) {
+            this.mFd = null;
+            this.mObserver.onError("open", e.getMessage());
             return false;
         }
 
@@ -68,17 +118,22 @@ public class SerialPort {
     }
 
     /**
-     * Writes the given `command` over the serial connection.
+     * Writes the given `command` over the serial connection. The write fails when it can't be
+     * completed in time, for example because the device holds off output through flow control.
      */
-    public boolean write(String command) {
+    public synchronized boolean write(String command) {
         if (this.mFileOutputStream == null) {
             return false;
         }
 
         byte[] commandBytes = command.getBytes();
+        long transmissionMs = commandBytes.length * this.mConfig.getBitsPerByte() * 1000L /
+                this.mConfig.getBaudRate();
+
         try {
             Log.w("SerialPort", "Write: " + command);
-            this.mFileOutputStream.write(commandBytes);
+            nativeWrite(commandBytes, (int) Math.min(
+                    Integer.MAX_VALUE, transmissionMs + WRITE_TIMEOUT_SLACK_MS));
             return true;
         } catch (IOException e) {
             this.mObserver.onError("write", e.getMessage());
@@ -89,7 +144,7 @@ public class SerialPort {
     /**
      * Closes the file descriptor with the device.
      */
-    public boolean close() {
+    public synchronized boolean close() {
         if (this.mFileOutputStream == null) {
             return false;  // already closed
         }
@@ -117,6 +172,11 @@ public class SerialPort {
     }
 
     public native void nativeClose();
+    public native void nativeConfigure(
+            int baudRate, int dataBits, int parity, int stopBits, int flowControl, int readMinimum,
+            int readTimeout) throws IOException;
     public native FileDescriptor nativeOpen(
-            String device, int baudRate, int dataBits, int parity, int stopBits, int flags);
+            String device, int baudRate, int dataBits, int parity, int stopBits, int flowControl,
+            int readMinimum, int readTimeout, int flags) throws IOException;
+    public native void nativeWrite(byte[] data, int timeoutMs) throws IOException;
 }
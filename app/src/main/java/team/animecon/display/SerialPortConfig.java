@@ -0,0 +1,165 @@
+// Copyright 2024 Peter Beverloo & AnimeCon. All rights reserved.
+// Use of this source code is governed by a MIT license that can be found in the LICENSE file.
+
+package team.animecon.display;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.Arrays;
+
+/**
+ * Immutable description of how a serial port should be configured: its baud rate, framing, flow
+ * control and read behaviour. Values are validated upon construction, so that a configuration that
+ * can't be applied is never stored for when the port is (re)opened. The native code applies them
+ * through termios, and will additionally reject values that the device itself does not support.
+ */
+public final class SerialPortConfig {
+    /**
+     * Parity modes. Must be kept in sync with native-lib.cpp.
+     */
+    public static final int PARITY_NONE = 0;
+    public static final int PARITY_ODD = 1;
+    public static final int PARITY_EVEN = 2;
+
+    private static final String[] PARITY_NAMES = new String[] { "none", "odd", "even" };
+
+    /**
+     * Flow control modes. Must be kept in sync with native-lib.cpp.
+     */
+    public static final int FLOW_CONTROL_NONE = 0;
+    public static final int FLOW_CONTROL_HARDWARE = 1;  // RTS/CTS
+    public static final int FLOW_CONTROL_SOFTWARE = 2;  // XON/XOFF
+
+    private static final String[] FLOW_CONTROL_NAMES =
+            new String[] { "none", "hardware", "software" };
+
+    /**
+     * Baud rates for which a termios speed exists. Must be kept in sync with native-lib.cpp.
+     */
+    private static final int[] BAUD_RATES = new int[] {
+            50, 75, 110, 134, 150, 200, 300, 600, 1200, 1800, 2400, 4800, 9600, 19200, 38400,
+            57600, 115200, 230400, 460800, 500000, 576000, 921600, 1000000, 1152000, 1500000,
+            2000000, 2500000, 3000000, 3500000, 4000000 };
+
+    private final int mBaudRate;
+    private final int mDataBits;
+    private final int mParity;
+    private final int mStopBits;
+    private final int mFlowControl;
+
+    /**
+     * Minimum number of bytes and timeout, in tenths of a second, for reads. (`VMIN` and `VTIME`)
+     */
+    private final int mReadMinimum;
+    private final int mReadTimeout;
+
+    /**
+     * Creates a configuration for 8N1 communication at the given `baudRate` without flow control,
+     * where reads block until at least a single byte is available.
+     */
+    public SerialPortConfig(int baudRate) {
+        this(baudRate, 8, PARITY_NONE, 1, FLOW_CONTROL_NONE, 1, 0);
+    }
+
+    /**
+     * Creates a configuration with the given values. Throws an IllegalArgumentException when any
+     * of them is not supported.
+     */
+    public SerialPortConfig(int baudRate, int dataBits, int parity, int stopBits, int flowControl,
+                            int readMinimum, int readTimeout) {
+        if (Arrays.binarySearch(BAUD_RATES, baudRate) < 0)
+            throw new IllegalArgumentException("Unsupported baud rate: " + baudRate);
+        if (dataBits < 5 || dataBits > 8)
+            throw new IllegalArgumentException("Unsupported data bits: " + dataBits);
+        if (parity < PARITY_NONE || parity > PARITY_EVEN)
+            throw new IllegalArgumentException("Unsupported parity: " + parity);
+        if (stopBits < 1 || stopBits > 2)
+            throw new IllegalArgumentException("Unsupported stop bits: " + stopBits);
+        if (flowControl < FLOW_CONTROL_NONE || flowControl > FLOW_CONTROL_SOFTWARE)
+            throw new IllegalArgumentException("Unsupported flow control: " + flowControl);
+        if (readMinimum < 0 || readMinimum > 255 || readTimeout < 0 || readTimeout > 255)
+            throw new IllegalArgumentException("VMIN and VTIME must be between 0 and 255");
+
+        this.mBaudRate = baudRate;
+        this.mDataBits = dataBits;
+        this.mParity = parity;
+        this.mStopBits = stopBits;
+        this.mFlowControl = flowControl;
+        this.mReadMinimum = readMinimum;
+        this.mReadTimeout = readTimeout;
+    }
+
+    public int getBaudRate() {
+        return this.mBaudRate;
+    }
+
+    public int getDataBits() {
+        return this.mDataBits;
+    }
+
+    public int getParity() {
+        return this.mParity;
+    }
+
+    public int getStopBits() {
+        return this.mStopBits;
+    }
+
+    public int getFlowControl() {
+        return this.mFlowControl;
+    }
+
+    public int getReadMinimum() {
+        return this.mReadMinimum;
+    }
+
+    public int getReadTimeout() {
+        return this.mReadTimeout;
+    }
+
+    /**
+     * Returns the parity mode with the given `name`, or -1 when it's not known.
+     */
+    public static int parityFromName(String name) {
+        return indexOf(PARITY_NAMES, name);
+    }
+
+    /**
+     * Returns the flow control mode with the given `name`, or -1 when it's not known.
+     */
+    public static int flowControlFromName(String name) {
+        return indexOf(FLOW_CONTROL_NAMES, name);
+    }
+
+    /**
+     * Returns the number of bits that will be sent on the wire for each byte.
+     */
+    public int getBitsPerByte() {
+        return /* start bit= */ 1 + this.mDataBits + (this.mParity != PARITY_NONE ? 1 : 0) +
+                this.mStopBits;
+    }
+
+    /**
+     * Returns the configuration as JSON.
+     */
+    public JSONObject toJson() throws JSONException {
+        JSONObject result = new JSONObject();
+        result.put("baud", this.mBaudRate);
+        result.put("data", this.mDataBits);
+        result.put("parity", PARITY_NAMES[this.mParity]);
+        result.put("stop", this.mStopBits);
+        result.put("flow", FLOW_CONTROL_NAMES[this.mFlowControl]);
+        result.put("vmin", this.mReadMinimum);
+        result.put("vtime", this.mReadTimeout);
+        return result;
+    }
+
+    private static int indexOf(String[] names, String name) {
+        for (int index = 0; index < names.length; ++index) {
+            if (names[index].equals(name))
+                return index;
+        }
+        return -1;
+    }
+}
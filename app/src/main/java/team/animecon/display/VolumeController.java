@@ -12,7 +12,7 @@ import android.util.Log;
  * The Volume controller is in charge of changing the device's volume. This will be exposed to the
  * user interface as a slider, and takes immediate effect.
  */
-public class VolumeController {
+public class VolumeController implements WebMessageListener.VolumeDelegate {
     /**
      * The AudioManager instance through which we will interact with the system.
      */
@@ -25,6 +25,7 @@ public class VolumeController {
     /**
      * Returns the current volume of the device, as an integer between 0 and 255.
      */
+    @Override
     public int getVolume() {
         double maxVolume = this.mAudioManager.getStreamMaxVolume(AudioManager.STREAM_MUSIC);
         double currentVolume = this.mAudioManager.getStreamVolume(AudioManager.STREAM_MUSIC);
@@ -35,6 +36,7 @@ public class VolumeController {
     /**
      * Updates the device's current volume to `volume`, given as an integer between 0 and 255.
      */
+    @Override
     public void update(int volume) {
         double maxVolume = this.mAudioManager.getStreamMaxVolume(AudioManager.STREAM_MUSIC);
         double updatedVolume = (((double) volume) / 255.0) * maxVolume;
@@ -4,6 +4,7 @@
 package team.animecon.display;
 
 import android.net.Uri;
+import android.os.SystemClock;
 import android.util.Log;
 import android.webkit.WebView;
 
@@ -13,6 +14,10 @@ import androidx.webkit.WebMessageCompat;
 import androidx.webkit.WebViewCompat;
 import androidx.webkit.WebViewFeature;
 
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.IOException;
 import java.net.InetAddress;
 import java.net.NetworkInterface;
 import java.net.SocketException;
@@ -27,21 +32,160 @@ import java.util.List;
 public class WebMessageListener implements WebViewCompat.WebMessageListener {
     private static final String TAG = "WebMessageListener";
 
+    /**
+     * Interfaces through which the listener executes commands on each of the controllers. Only the
+     * operations used by commands are included, which allows replays to substitute inert fakes.
+     */
+    public interface AutoBrightnessDelegate {
+        /**
+         * Enables or disables auto brightness. Returns false when no light sensor is available.
+         */
+        boolean setEnabled(boolean enabled);
+
+        /**
+         * Updates the curve that maps ambient light levels to brightness levels. Returns false when
+         * the curve is invalid.
+         */
+        boolean setCurve(int[] lux, int[] levels);
+
+        JSONObject toJson() throws JSONException;
+    }
+
+    public interface BrightnessDelegate {
+        int getBrightness();
+
+        boolean update(int brightness);
+    }
+
+    public interface FrameMonitorDelegate {
+        /**
+         * To be called around the execution of each command, so that stalls can be attributed.
+         */
+        void onCommandStarted(String command);
+        void onCommandFinished();
+
+        void enable();
+        void disable();
+        void reset();
+
+        JSONObject toJson() throws JSONException;
+    }
+
+    public interface IdleDelegate {
+        boolean isIdle();
+
+        /**
+         * Updates the schedule, in minutes since midnight. Returns false when it is invalid.
+         */
+        boolean setSchedule(int startMinute, int endMinute);
+
+        void enterIdle();
+        void exitIdle();
+        void clearOverride();
+
+        /**
+         * Remembers the `brightness` to apply when the display wakes up, when it's idle. Returns
+         * whether the brightness has been deferred.
+         */
+        boolean deferBrightness(int brightness);
+
+        JSONObject toJson() throws JSONException;
+    }
+
+    public interface KioskDelegate {
+        boolean enable();
+        boolean disable();
+
+        void hideUserInterface();
+    }
+
+    public interface LightDelegate {
+        boolean open();
+        boolean close();
+
+        boolean set(int red, int green, int blue);
+        boolean sendCommand(String command);
+
+        /**
+         * Schedules the `command` to be sent at `targetTimeNs` on the monotonic clock.
+         */
+        void schedule(String command, long targetTimeNs);
+        void cancelScheduled();
+
+        JSONObject getStatus() throws JSONException;
+
+        SerialPortConfig getSerialConfig();
+        void configureSerial(SerialPortConfig config) throws IOException;
+    }
+
+    public interface VolumeDelegate {
+        int getVolume();
+
+        void update(int volume);
+    }
+
+    public interface WebViewDelegate {
+        JSONObject toJson() throws JSONException;
+    }
+
+    /**
+     * Maximum delay with which light commands can be scheduled.
+     */
+    private static final long MAX_SCHEDULE_DELAY_NS = 24L * 60 * 60 * 1_000_000_000L;
+
     /**
      * Instances of the controller objects that can be controlled through JavaScript.
      */
-    private final BrightnessController mBrightnessController;
-    private final KioskController mKioskController;
-    private final LightController mLightController;
-    private final VolumeController mVolumeController;
+    private final AutoBrightnessDelegate mAutoBrightnessController;
+    private final BrightnessDelegate mBrightnessController;
+    private final IdleDelegate mIdleController;
+    private final KioskDelegate mKioskController;
+    private final LightDelegate mLightController;
+    private final VolumeDelegate mVolumeController;
+    private final WebViewDelegate mWebViewController;
+
+    /**
+     * Estimator of the offset between the page's server time and the host's monotonic clock, used
+     * to schedule light commands on a timeline shared by the fleet.
+     */
+    private final ClockOffsetEstimator mClockOffsetEstimator;
+
+    /**
+     * Monitor of the main thread's frame timing, which is informed about each executed command.
+     */
+    private final FrameMonitorDelegate mFrameMonitor;
+
+    /**
+     * Recorder and replayer of bridge traffic. Both are NULL for listeners used during a replay.
+     */
+    private final BridgeRecorder mBridgeRecorder;
+    private final BridgeReplayer mBridgeReplayer;
+
+    /**
+     * Parser used to tokenize received messages, and the command they are parsed into. Both are
+     * reused for each message.
+     */
+    private final BridgeCommand mCommand = new BridgeCommand();
+    private final CommandParser mParser = new CommandParser();
 
     public WebMessageListener(
-            BrightnessController brightnessController, KioskController kioskController,
-            LightController lightController, VolumeController volumeController) {
+            AutoBrightnessDelegate autoBrightnessController,
+            BrightnessDelegate brightnessController, ClockOffsetEstimator clockOffsetEstimator,
+            FrameMonitorDelegate frameMonitor, IdleDelegate idleController,
+            KioskDelegate kioskController, LightDelegate lightController,
+            VolumeDelegate volumeController, WebViewDelegate webViewController,
+            BridgeRecorder bridgeRecorder, BridgeReplayer bridgeReplayer) {
+        this.mAutoBrightnessController = autoBrightnessController;
         this.mBrightnessController = brightnessController;
+        this.mBridgeRecorder = bridgeRecorder;
+        this.mBridgeReplayer = bridgeReplayer;
+        this.mClockOffsetEstimator = clockOffsetEstimator;
+        this.mFrameMonitor = frameMonitor;
+        this.mIdleController = idleController;
         this.mKioskController = kioskController;
         this.mLightController = lightController;
         this.mVolumeController = volumeController;
+        this.mWebViewController = webViewController;
     }
 
     /**
@@ -72,55 +216,179 @@ public class WebMessageListener implements WebViewCompat.WebMessageListener {
             return;
         }
 
-        if (messageData.startsWith("brightness:")) {
-            this.onBrightnessCommand(messageData.substring(/* len(brightness:)= */ 11), replyProxy);
-        } else if (messageData.startsWith("ip")) {
-            this.onIpCommand(replyProxy);
-        } else if (messageData.startsWith("kiosk:")) {
-            this.onKioskCommand(messageData.substring(/* len(kiosk:)= */ 6), replyProxy);
-        } else if (messageData.startsWith("light:")) {
-            this.onLightCommand(messageData.substring(/* len(light:)= */ 6), replyProxy);
-        } else if (messageData.startsWith("lightset:")) {
-            this.onLightSetCommand(messageData.substring(/* len(lightset:)= */ 9), replyProxy);
-        } else if (messageData.startsWith("volume:")) {
-            this.onVolumeCommand(messageData.substring(/* len(volume:)= */ 7), replyProxy);
-        } else {
-            this.respond(replyProxy, "error:Invalid command");
+        long startTimeNs = SystemClock.elapsedRealtimeNanos();
+        String response;
+
+        this.mFrameMonitor.onCommandStarted(messageData);
+        try {
+            response = this.handleMessage(messageData);
+        } finally {
+            this.mFrameMonitor.onCommandFinished();
         }
+
+        if (this.mBridgeRecorder != null && this.mBridgeRecorder.isRecording())
+            this.mBridgeRecorder.record(messageData, response, startTimeNs);
+
+        this.respond(replyProxy, response);
     }
 
     /**
-     * Deals with brightness commands. The following commands are supported:
-     * - get        Returns the device's current brightness level.
-     * - {0-255}    Updates the device's brightness to the given value.
+     * Parses the given `messageData` and executes the resulting command, and returns the response
+     * that should be shared with JavaScript. Used for both live and replayed bridge traffic.
      */
-    private void onBrightnessCommand(
-            @NonNull String command, @NonNull JavaScriptReplyProxy replyProxy) {
-        if (command.startsWith("get")) {
-            int brightness = this.mBrightnessController.getBrightness();
+    @NonNull
+    public String handleMessage(@NonNull String messageData) {
+        BridgeCommand command = this.mCommand;
+        if (!BridgeCommand.parse(this.mParser, messageData, command))
+            return command.getError();
 
-            this.respond(replyProxy, "success:" + brightness);
-            return;
+        try {
+            return this.execute(command);
+        } catch (JSONException e) {
+            return "error:" + e.getMessage();
         }
+    }
 
-        try {
-            int brightness = Integer.parseInt(command);
-            if (brightness >= 0 && brightness <= 255) {
-                this.mBrightnessController.update(brightness);
-                this.respond(replyProxy, "success");
-            } else {
-                this.respond(replyProxy, "error:Invalid brightness command (out of bounds");
-            }
-        } catch (NumberFormatException e) {
-            Log.e(TAG, "Received an invalid brightness value: " + command);
-            this.respond(replyProxy, "error:Invalid brightness command");
+    /**
+     * Executes the parsed `command` on the appropriate controller. The commands themselves are
+     * documented in `BridgeCommand`. Validation that depends on the state of a controller happens
+     * here, everything else has been done while parsing.
+     */
+    private String execute(@NonNull BridgeCommand command) throws JSONException {
+        switch (command.getAction()) {
+            case BridgeCommand.ACTION_AUTO_BRIGHTNESS_CURVE:
+                if (!this.mAutoBrightnessController.setCurve(
+                        command.getCurveLux(), command.getCurveLevels())) {
+                    return "error:Invalid brightness command (invalid curve)";
+                }
+                return "success:" + this.mAutoBrightnessController.toJson();
+            case BridgeCommand.ACTION_AUTO_BRIGHTNESS_GET:
+                return "success:" + this.mAutoBrightnessController.toJson();
+            case BridgeCommand.ACTION_AUTO_BRIGHTNESS_OFF:
+                this.mAutoBrightnessController.setEnabled(false);
+                return "success:" + this.mAutoBrightnessController.toJson();
+            case BridgeCommand.ACTION_AUTO_BRIGHTNESS_ON:
+                if (!this.mAutoBrightnessController.setEnabled(true))
+                    return "error:Invalid brightness command (no light sensor)";
+                return "success:" + this.mAutoBrightnessController.toJson();
+
+            case BridgeCommand.ACTION_BRIGHTNESS_GET:
+                return "success:" + this.mBrightnessController.getBrightness();
+            case BridgeCommand.ACTION_BRIGHTNESS_SET:
+                // Manual brightness disables auto brightness. While idle, the value will be
+                // applied once the display wakes up.
+                this.mAutoBrightnessController.setEnabled(false);
+                if (!this.mIdleController.deferBrightness(command.getInt(0)))
+                    this.mBrightnessController.update(command.getInt(0));
+                return "success";
+
+            case BridgeCommand.ACTION_FRAMES_DISABLE:
+                this.mFrameMonitor.disable();
+                return "success";
+            case BridgeCommand.ACTION_FRAMES_ENABLE:
+                this.mFrameMonitor.enable();
+                return "success";
+            case BridgeCommand.ACTION_FRAMES_GET:
+                return "success:" + this.mFrameMonitor.toJson();
+            case BridgeCommand.ACTION_FRAMES_RESET:
+                this.mFrameMonitor.reset();
+                return "success";
+
+            case BridgeCommand.ACTION_IDLE_AUTO:
+                this.mIdleController.clearOverride();
+                return "success";
+            case BridgeCommand.ACTION_IDLE_ENTER:
+                this.mIdleController.enterIdle();
+                return "success";
+            case BridgeCommand.ACTION_IDLE_EXIT:
+                this.mIdleController.exitIdle();
+                return "success";
+            case BridgeCommand.ACTION_IDLE_GET:
+                return "success:" + this.mIdleController.toJson();
+            case BridgeCommand.ACTION_IDLE_SCHEDULE:
+                if (!this.mIdleController.setSchedule(command.getInt(0), command.getInt(1)))
+                    return "error:Invalid idle command (needs HH:MM-HH:MM)";
+                return "success";
+
+            case BridgeCommand.ACTION_IP:
+                return this.onIpCommand();
+
+            case BridgeCommand.ACTION_KIOSK_DISABLE:
+                this.mKioskController.disable();
+                this.mKioskController.hideUserInterface();
+                return "success";
+            case BridgeCommand.ACTION_KIOSK_ENABLE:
+                this.mKioskController.enable();
+                this.mKioskController.hideUserInterface();
+                return "success";
+
+            case BridgeCommand.ACTION_LIGHT_CANCEL:
+                this.mLightController.cancelScheduled();
+                return "success";
+            case BridgeCommand.ACTION_LIGHT_CLOSE:
+                return this.mLightController.close() ? "success" : "error:Invalid light command";
+            case BridgeCommand.ACTION_LIGHT_OPEN:
+                return this.mLightController.open() ? "success" : "error:Invalid light command";
+            case BridgeCommand.ACTION_LIGHT_SCHEDULE:
+                return this.onLightScheduleCommand(command.getLong(0), command.getText());
+            case BridgeCommand.ACTION_LIGHT_SEND:
+                return this.mLightController.sendCommand(command.getText())
+                        ? "success" : "error:Invalid light command";
+            case BridgeCommand.ACTION_LIGHT_SET:
+                if (!this.mLightController.set(
+                        command.getInt(0), command.getInt(1), command.getInt(2))) {
+                    return "error:Invalid light command (needs rgb)";
+                }
+                return "success";
+            case BridgeCommand.ACTION_LIGHT_STATUS:
+                return "success:" + this.mLightController.getStatus();
+
+            case BridgeCommand.ACTION_RECORD_GET:
+            case BridgeCommand.ACTION_RECORD_START:
+            case BridgeCommand.ACTION_RECORD_STOP:
+                return this.onRecordCommand(command.getAction());
+
+            case BridgeCommand.ACTION_REPLAY_GET:
+            case BridgeCommand.ACTION_REPLAY_START:
+                return this.onReplayCommand(command);
+
+            case BridgeCommand.ACTION_SERIAL_BAUD:
+            case BridgeCommand.ACTION_SERIAL_GET:
+            case BridgeCommand.ACTION_SERIAL_SET:
+                return this.onSerialCommand(command);
+
+            case BridgeCommand.ACTION_SYNC_GET:
+                return "success:" + this.mClockOffsetEstimator.toJson();
+            case BridgeCommand.ACTION_SYNC_PING:
+                return "success:" + SystemClock.elapsedRealtime();
+            case BridgeCommand.ACTION_SYNC_RESET:
+                this.mClockOffsetEstimator.reset();
+                return "success";
+            case BridgeCommand.ACTION_SYNC_SAMPLE:
+                if (!this.mClockOffsetEstimator.addSample(
+                        command.getLong(0), command.getLong(1), command.getLong(2))) {
+                    return "error:Invalid sync command (rejected sample)";
+                }
+                return "success:" + this.mClockOffsetEstimator.toJson();
+
+            case BridgeCommand.ACTION_VOLUME_GET:
+                return "success:" + this.mVolumeController.getVolume();
+            case BridgeCommand.ACTION_VOLUME_SET:
+                this.mVolumeController.update(command.getInt(0));
+                return "success";
+
+            case BridgeCommand.ACTION_WEBVIEW_GET:
+                return "success:" + this.mWebViewController.toJson();
+
+            default:
+                return "error:Invalid command";
         }
     }
 
     /**
      * Deals with the ip command, which outputs the local IP addresses.
      */
-    private void onIpCommand(@NonNull JavaScriptReplyProxy replyProxy) {
+    private String onIpCommand() {
         try {
             List<String> addresses = new ArrayList<String>();
 
@@ -135,116 +403,98 @@ public class WebMessageListener implements WebViewCompat.WebMessageListener {
                         addresses.add(address.getHostAddress());
                 }
             }
-            this.respond(replyProxy, "success:" + String.join(";", addresses));
+            return "success:" + String.join(";", addresses);
         } catch (SocketException e) {
-            this.respond(replyProxy, "error:" + e.getMessage());
+            return "error:" + e.getMessage();
         }
     }
 
     /**
-     * Deals with kiosk commands. The following commands are supported:
-     * - disable          Disables kiosk mode's task lockdown on the current device.
-     * - enable           Enables kiosk mode's task lockdown on the current device.
+     * Schedules the light `command` to be sent at the given server time, which will be converted to
+     * host time using the estimated clock offset. Times that have passed, or that are more than a
+     * day away, are rejected, as is scheduling before the clock has been synchronised or while the
+     * display is idle.
      */
-    private void onKioskCommand(@NonNull String command, @NonNull JavaScriptReplyProxy replyProxy) {
-        if (command.startsWith("disable")) {
-            this.mKioskController.disable();
-            this.mKioskController.hideUserInterface();
-            this.respond(replyProxy, "success");
-        } else if (command.startsWith("enable")) {
-            this.mKioskController.enable();
-            this.mKioskController.hideUserInterface();
-            this.respond(replyProxy, "success");
-        } else {
-            this.respond(replyProxy, "error:Invalid kiosk command");
-        }
+    private String onLightScheduleCommand(long serverTimeMs, String command) {
+        // Idle mode shuts off the strip, and cancels commands that were scheduled before.
+        if (this.mIdleController.isIdle())
+            return "error:Invalid light command (display is idle)";
+
+        if (!this.mClockOffsetEstimator.isSynchronised())
+            return "error:Invalid light command (clock not synchronised)";
+
+        long targetTimeNs = this.mClockOffsetEstimator.toHostTimeNanos(serverTimeMs);
+        long delayNs = targetTimeNs - SystemClock.elapsedRealtimeNanos();
+        if (delayNs < 0 || delayNs > MAX_SCHEDULE_DELAY_NS)
+            return "error:Invalid light command (out of bounds)";
+
+        this.mLightController.schedule(command, targetTimeNs);
+        return "success";
     }
 
     /**
-     * Deals with light commands. The following commands are supported:
-     * - open                                     Opens the serial connection with the light.
-     * - close                                    Closes the serial connection with the light.
-     * - LIVE:{RED,GREEN,BLUE}:{SECONDS}          Enable the "live" mode for the given colour.
-     * - KEEP:{RED,GREEN,BLUE}:{SECONDS}:{0-255}  Enable the "keep" mode for the given colour.
-     * - CRAZY:{SECONDS}                          Enable the "crazy" mode.
-     * - FLASH:{SECONDS}                          Enable the "flash" mode.
-     * - CLOSE:{RED,GREEN,BLUE}                   Shuts off the given colour(s) entirely.
+     * Deals with the bridge recording `action`, which is unavailable during a replay.
      */
-    private void onLightCommand(@NonNull String command, @NonNull JavaScriptReplyProxy replyProxy) {
-        boolean result = false;
+    private String onRecordCommand(int action) throws JSONException {
+        if (this.mBridgeRecorder == null)
+            return "error:Invalid record command (unavailable)";
 
-        if (command.startsWith("open")) {
-            result = this.mLightController.open();
-        } else if (command.startsWith("close")) {
-            result = this.mLightController.close();
-        } else {
-            result = this.mLightController.sendCommand(command);
-        }
+        if (action == BridgeCommand.ACTION_RECORD_GET)
+            return "success:" + this.mBridgeRecorder.toJson();
 
-        if (result) {
-            this.respond(replyProxy, "success");
-        } else {
-            this.respond(replyProxy, "error:Invalid light command");
+        if (action == BridgeCommand.ACTION_RECORD_START) {
+            String name = this.mBridgeRecorder.start();
+            return name != null ? "success:" + name : "error:Unable to start recording";
         }
+
+        return this.mBridgeRecorder.stop() ? "success" : "error:Not recording";
     }
 
     /**
-     * Sets the lights to a predefined value. Singular command that results in multiple commands
-     * to be issued over the serial port for improved performance.
-     *
-     * - {0-255},{0-255},{0-255}   Updates the light strip's colour to the given R, G, B
+     * Deals with the bridge replay `command`, which is unavailable during a replay.
      */
-    private void onLightSetCommand(
-            @NonNull String command, @NonNull JavaScriptReplyProxy replyProxy) {
-        String[] components = command.split(",");
-        if (components.length == 3) {
-            try {
-                int red = Integer.parseInt(components[0]);
-                int green = Integer.parseInt(components[1]);
-                int blue = Integer.parseInt(components[2]);
+    private String onReplayCommand(@NonNull BridgeCommand command) throws JSONException {
+        if (this.mBridgeReplayer == null)
+            return "error:Invalid replay command (unavailable)";
 
-                if (red < 0 || green < 0 || blue < 0 || red > 255 || green > 255 || blue > 255) {
-                    this.respond(replyProxy, "error:Invalid light command (out of bounds)");
-                    return;
-                }
+        if (command.getAction() == BridgeCommand.ACTION_REPLAY_GET)
+            return "success:" + this.mBridgeReplayer.toJson();
 
-                if (this.mLightController.set(red, green, blue)) {
-                    this.respond(replyProxy, "success");
-                    return;
-                }
-            } catch (NumberFormatException e) {
-                this.respond(replyProxy, "error:Invalid light command (odd number)");
-                return;
-            }
-        }
-        this.respond(replyProxy, "error:Invalid light command (needs rgb)");
+        boolean simulated = command.getInt(0) != 0;
+        if (!this.mBridgeReplayer.start(command.getText(), command.getSpeed(), simulated))
+            return "error:Unable to start replay";
+
+        return "success";
     }
 
     /**
-     * Deals with volume commands. The following commands are supported:
-     * - get        Returns the device's current volume level.
-     * - {0-255}    Updates the device's volume to the given value.
+     * Deals with the serial port `command`. Changes apply to an open port immediately, after
+     * pending output has been sent. Switching the strip's firmware to a different baud rate, when
+     * supported, is left to JavaScript.
      */
-    private void onVolumeCommand(
-            @NonNull String command, @NonNull JavaScriptReplyProxy replyProxy) {
-        if (command.startsWith("get")) {
-            int volume = this.mVolumeController.getVolume();
+    private String onSerialCommand(@NonNull BridgeCommand command) throws JSONException {
+        SerialPortConfig config = this.mLightController.getSerialConfig();
+        if (command.getAction() == BridgeCommand.ACTION_SERIAL_GET)
+            return "success:" + config.toJson();
 
-            this.respond(replyProxy, "success:" + volume);
-            return;
+        SerialPortConfig updatedConfig;
+        if (command.getAction() == BridgeCommand.ACTION_SERIAL_BAUD) {
+            updatedConfig = new SerialPortConfig(
+                    command.getInt(0), config.getDataBits(), config.getParity(),
+                    config.getStopBits(), config.getFlowControl(), config.getReadMinimum(),
+                    config.getReadTimeout());
+        } else {
+            updatedConfig = new SerialPortConfig(
+                    command.getInt(0), command.getInt(1), command.getInt(2), command.getInt(3),
+                    command.getInt(4), command.getInt(5), command.getInt(6));
         }
 
         try {
-            int volume = Integer.parseInt(command);
-            if (volume >= 0 && volume <= 255) {
-                this.mVolumeController.update(volume);
-                this.respond(replyProxy, "success");
-            } else {
-                this.respond(replyProxy, "error:Invalid volume command (out of bounds");
-            }
-        } catch (NumberFormatException e) {
-            Log.e(TAG, "Received an invalid volume value: " + command);
-            this.respond(replyProxy, "error:Invalid volume command");
+            this.mLightController.configureSerial(updatedConfig);
+            return "success";
+        } catch (IOException | IllegalArgumentException e) {
+            Log.e(TAG, "Unable to configure the serial port: " + e.getMessage());
+            return "error:Invalid serial command (" + e.getMessage() + ")";
         }
     }
 }
@@ -0,0 +1,295 @@
+// Copyright 2024 Peter Beverloo & AnimeCon. All rights reserved.
+// Use of this source code is governed by a MIT license that can be found in the LICENSE file.
+
+package team.animecon.display;
+
+import android.annotation.SuppressLint;
+import android.app.Activity;
+import android.content.ComponentCallbacks2;
+import android.graphics.Color;
+import android.os.SystemClock;
+import android.util.Log;
+import android.view.ViewGroup;
+import android.webkit.CookieManager;
+import android.webkit.RenderProcessGoneDetail;
+import android.webkit.WebSettings;
+import android.webkit.WebView;
+
+import androidx.annotation.NonNull;
+import androidx.webkit.WebViewClientCompat;
+import androidx.webkit.WebViewCompat;
+import androidx.webkit.WebViewFeature;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.Collections;
+import java.util.HashSet;
+
+/**
+ * The `WebViewController` owns the WebView in which the Volunteer Manager is displayed. Crashes of
+ * the renderer process and critical memory pressure are handled by tearing down the WebView and
+ * building a new one in its place, which keeps the app's process, and with that the open serial
+ * port and all controller state, alive. This is far cheaper than relaunching the app.
+ */
+public class WebViewController implements WebMessageListener.WebViewDelegate {
+    private static final String TAG = "WebViewController";
+
+    /**
+     * Minimum time between two rebuilds that are triggered by memory pressure, to avoid a loop of
+     * rebuilds when the system remains under pressure.
+     */
+    private static final long MEMORY_REBUILD_INTERVAL_MS = 60_000;
+
+    /**
+     * The Android Activity in which the WebView is being displayed.
+     */
+    private final Activity mActivity;
+
+    /**
+     * The URL that should be loaded in the WebView.
+     */
+    private final String mUrl;
+
+    /**
+     * The WebView that's currently being displayed, and the listener through which it will
+     * communicate with the host app.
+     */
+    private WebView mWebView;
+    private WebMessageListener mWebMessageListener;
+
+    /**
+     * Whether the WebView's timers and rendering have been paused, which carries over to rebuilds,
+     * and whether a WebView rebuilt while paused still has to load the Volunteer Manager.
+     */
+    private boolean mPaused = false;
+    private boolean mLoadPending = false;
+
+    /**
+     * Statistics about the rebuilds that have happened during the lifetime of this process. The
+     * `mRebuildStartTime` is non-zero while a rebuilt WebView has not finished loading yet.
+     */
+    private int mRendererCrashCount = 0;
+    private int mRendererKillCount = 0;
+    private int mMemoryRebuildCount = 0;
+
+    private long mRebuildStartTime = 0;
+    private long mLastMemoryRebuildTime = 0;
+    private long mLastRecoveryTimeMs = -1;
+    private long mMaximumRecoveryTimeMs = -1;
+    private String mLastRebuildReason;
+
+    public WebViewController(Activity activity, WebView webView, String url) {
+        this.mActivity = activity;
+        this.mWebView = webView;
+        this.mUrl = url;
+    }
+
+    /**
+     * Initialises the controller by configuring the WebView, and loads the Volunteer Manager.
+     */
+    public void initialise(WebMessageListener webMessageListener) {
+        this.mWebMessageListener = webMessageListener;
+
+        CookieManager.getInstance().setAcceptCookie(true);
+
+        this.configure(this.mWebView);
+        this.mWebView.loadUrl(this.mUrl);
+    }
+
+    /**
+     * Configures the given `webView` for displaying the Volunteer Manager.
+     */
+    @SuppressLint("SetJavaScriptEnabled")
+    private void configure(WebView webView) {
+        webView.setBackgroundColor(Color.parseColor("#211a1a"));
+
+        // The renderer displays the app's sole user interface, so it should be treated as being as
+        // important as the app itself when the system looks for processes to kill.
+        webView.setRendererPriorityPolicy(WebView.RENDERER_PRIORITY_IMPORTANT, false);
+
+        WebSettings webSettings = webView.getSettings();
+        webSettings.setDomStorageEnabled(true);
+        webSettings.setJavaScriptEnabled(true);
+        webSettings.setMediaPlaybackRequiresUserGesture(false);
+
+        HashSet<String> allowedOriginRules = new HashSet<String>(Collections.singletonList("*"));
+
+        if (WebViewFeature.isFeatureSupported(WebViewFeature.WEB_MESSAGE_LISTENER)) {
+            WebViewCompat.addWebMessageListener(
+                    webView, "animeCon", allowedOriginRules, this.mWebMessageListener);
+        }
+
+        webView.setWebViewClient(new WebViewClientCompat() {
+            @Override
+            public void onPageFinished(@NonNull WebView view, @NonNull String url) {
+                WebViewController.this.onPageFinished(view);
+            }
+
+            @Override
+            public boolean onRenderProcessGone(
+                    @NonNull WebView view, @NonNull RenderProcessGoneDetail detail) {
+                return WebViewController.this.onRenderProcessGone(view, detail);
+            }
+        });
+    }
+
+    /**
+     * Pauses all timers, layout and rendering of the WebView. Does nothing when already paused.
+     */
+    public void pause() {
+        if (this.mPaused)
+            return;
+
+        this.mPaused = true;
+        this.mWebView.onPause();
+        this.mWebView.pauseTimers();
+    }
+
+    /**
+     * Resumes the WebView's timers and rendering. Does nothing when it's not paused.
+     */
+    public void resume() {
+        if (!this.mPaused)
+            return;
+
+        this.mPaused = false;
+        this.mWebView.resumeTimers();
+        this.mWebView.onResume();
+
+        if (this.mLoadPending) {
+            this.mLoadPending = false;
+            this.mRebuildStartTime = SystemClock.elapsedRealtime();
+            this.mWebView.loadUrl(this.mUrl);
+        }
+    }
+
+    /**
+     * Dispatches a `CustomEvent` of the given `type` on the page's window, carrying the given
+     * `detail`, which must be valid JSON. Allows the host app to inform the page without it having
+     * to poll for changes.
+     */
+    public void dispatchEvent(String type, String detail) {
+        if (this.mWebView == null)
+            return;
+
+        this.mWebView.evaluateJavascript(
+                "window.dispatchEvent(new CustomEvent('" + type + "', { detail: " + detail +
+                        " }));", /* resultCallback= */ null);
+    }
+
+    /**
+     * To be called when the system asks the app to trim its memory usage. Tearing down the WebView
+     * releases the renderer's memory, which is preferable over the system killing the process.
+     */
+    public void onTrimMemory(int level) {
+        if (level != ComponentCallbacks2.TRIM_MEMORY_RUNNING_CRITICAL &&
+                level != ComponentCallbacks2.TRIM_MEMORY_COMPLETE) {
+            return;
+        }
+
+        long currentTime = SystemClock.elapsedRealtime();
+        if (this.mLastMemoryRebuildTime != 0 &&
+                currentTime - this.mLastMemoryRebuildTime < MEMORY_REBUILD_INTERVAL_MS) {
+            return;  // rebuilt too recently
+        }
+
+        Log.w(TAG, "Rebuilding the WebView due to memory pressure (level " + level + ")");
+
+        this.mLastMemoryRebuildTime = currentTime;
+        this.mMemoryRebuildCount++;
+        this.rebuild("memory");
+    }
+
+    /**
+     * Returns statistics about the WebView's recoveries as a JSON object.
+     */
+    @Override
+    public JSONObject toJson() throws JSONException {
+        JSONObject result = new JSONObject();
+        result.put("rendererCrashes", this.mRendererCrashCount);
+        result.put("rendererKills", this.mRendererKillCount);
+        result.put("memoryRebuilds", this.mMemoryRebuildCount);
+        result.put("recovering", this.mRebuildStartTime != 0 || this.mLoadPending);
+        result.put("lastReason", this.mLastRebuildReason);
+        result.put("lastRecoveryMs", this.mLastRecoveryTimeMs);
+        result.put("maxRecoveryMs", this.mMaximumRecoveryTimeMs);
+        return result;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Called when the renderer process backing `view` has gone away, either because it crashed or
+     * because it was killed by the system to reclaim memory.
+     */
+    private boolean onRenderProcessGone(WebView view, RenderProcessGoneDetail detail) {
+        if (view != this.mWebView)
+            return true;  // a WebView that was already torn down
+
+        if (detail.didCrash()) {
+            Log.e(TAG, "The renderer process crashed; rebuilding the WebView");
+            this.mRendererCrashCount++;
+            this.rebuild("crash");
+        } else {
+            Log.w(TAG, "The renderer process was killed; rebuilding the WebView");
+            this.mRendererKillCount++;
+            this.rebuild("kill");
+        }
+
+        return true;
+    }
+
+    /**
+     * Called when `view` has finished loading a page. Completes time measurement of a recovery.
+     */
+    private void onPageFinished(WebView view) {
+        if (view != this.mWebView || this.mRebuildStartTime == 0)
+            return;
+
+        this.mLastRecoveryTimeMs = SystemClock.elapsedRealtime() - this.mRebuildStartTime;
+        this.mMaximumRecoveryTimeMs =
+                Math.max(this.mMaximumRecoveryTimeMs, this.mLastRecoveryTimeMs);
+        this.mRebuildStartTime = 0;
+
+        Log.i(TAG, "The WebView recovered in " + this.mLastRecoveryTimeMs + "ms");
+    }
+
+    /**
+     * Tears down the current WebView, and creates a new one in exactly the same place in the view
+     * hierarchy. The Volunteer Manager will be loaded again. While paused, loading is postponed
+     * until the WebView is resumed, so that the recovery time doesn't include time spent idle.
+     */
+    private void rebuild(String reason) {
+        this.mLastRebuildReason = reason;
+
+        WebView previousWebView = this.mWebView;
+        ViewGroup parent = (ViewGroup) previousWebView.getParent();
+        int index = parent.indexOfChild(previousWebView);
+
+        ViewGroup.LayoutParams layoutParams = previousWebView.getLayoutParams();
+
+        parent.removeView(previousWebView);
+        previousWebView.setWebViewClient(new WebViewClientCompat());
+        previousWebView.destroy();
+
+        WebView webView = new WebView(this.mActivity);
+        webView.setId(previousWebView.getId());
+
+        this.mWebView = webView;
+        this.configure(webView);
+
+        parent.addView(webView, index, layoutParams);
+
+        if (this.mPaused) {
+            webView.onPause();
+            webView.pauseTimers();
+
+            this.mRebuildStartTime = 0;
+            this.mLoadPending = true;
+        } else {
+            this.mRebuildStartTime = SystemClock.elapsedRealtime();
+            webView.loadUrl(this.mUrl);
+        }
+    }
+}
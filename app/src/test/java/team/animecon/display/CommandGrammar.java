@@ -0,0 +1,166 @@
+// Copyright 2024 Peter Beverloo & AnimeCon. All rights reserved.
+// Use of this source code is governed by a MIT license that can be found in the LICENSE file.
+
+package team.animecon.display;
+
+/**
+ * The startsWith/split dispatch that preceded the `CommandParser`, which serves as the reference
+ * for the bridge's command grammar. Describes the action a message would have caused rather than
+ * executing it. Descriptions starting with "err" mean that the message was rejected.
+ */
+final class CommandGrammar {
+    private CommandGrammar() {}
+
+    /**
+     * Describes the parsed `command` in the same format as `legacy()`. Actions that the reference
+     * does not know about are described as "new:{action}".
+     */
+    static String describe(BridgeCommand command) {
+        switch (command.getAction()) {
+            case BridgeCommand.ACTION_INVALID:
+                return describeError(command.getError());
+            case BridgeCommand.ACTION_BRIGHTNESS_GET:
+                return "brightness:get";
+            case BridgeCommand.ACTION_BRIGHTNESS_SET:
+                return "brightness:" + command.getInt(0);
+            case BridgeCommand.ACTION_IDLE_AUTO:
+                return "idle:auto";
+            case BridgeCommand.ACTION_IDLE_ENTER:
+                return "idle:enter";
+            case BridgeCommand.ACTION_IDLE_EXIT:
+                return "idle:exit";
+            case BridgeCommand.ACTION_IDLE_SCHEDULE:
+                return "idle:schedule:" + command.getInt(0) + "-" + command.getInt(1);
+            case BridgeCommand.ACTION_IP:
+                return "ip";
+            case BridgeCommand.ACTION_KIOSK_DISABLE:
+                return "kiosk:disable";
+            case BridgeCommand.ACTION_KIOSK_ENABLE:
+                return "kiosk:enable";
+            case BridgeCommand.ACTION_LIGHT_CLOSE:
+                return "light:close";
+            case BridgeCommand.ACTION_LIGHT_OPEN:
+                return "light:open";
+            case BridgeCommand.ACTION_LIGHT_SEND:
+                return "light:send:" + command.getText();
+            case BridgeCommand.ACTION_LIGHT_SET:
+                return "lightset:" + command.getInt(0) + "," + command.getInt(1) + "," +
+                        command.getInt(2);
+            case BridgeCommand.ACTION_VOLUME_GET:
+                return "volume:get";
+            case BridgeCommand.ACTION_VOLUME_SET:
+                return "volume:" + command.getInt(0);
+            default:
+                return "new:" + command.getAction();
+        }
+    }
+
+    /**
+     * Maps the `error` shared with JavaScript to the reference's categories of rejection.
+     */
+    private static String describeError(String error) {
+        if (error.contains("(out of bounds"))
+            return "err:oob";
+        if (error.contains("(odd number)"))
+            return "err:odd";
+        if (error.contains("(needs rgb)"))
+            return "err:rgb";
+        if (error.contains("(needs HH:MM-HH:MM)"))
+            return "err:schedule";
+        return "err";
+    }
+
+    /**
+     * Describes the action that the startsWith/split dispatch would have taken for `message`.
+     */
+    static String legacy(String message) {
+        if (message.startsWith("brightness:"))
+            return legacyLevel("brightness", message.substring(11));
+        if (message.startsWith("idle:"))
+            return legacyIdle(message.substring(5));
+        if (message.startsWith("ip"))
+            return "ip";
+        if (message.startsWith("kiosk:")) {
+            String command = message.substring(6);
+            if (command.startsWith("disable"))
+                return "kiosk:disable";
+            if (command.startsWith("enable"))
+                return "kiosk:enable";
+            return "err";
+        }
+        if (message.startsWith("light:")) {
+            String command = message.substring(6);
+            if (command.startsWith("open"))
+                return "light:open";
+            if (command.startsWith("close"))
+                return "light:close";
+            return "light:send:" + command;
+        }
+        if (message.startsWith("lightset:")) {
+            String[] components = message.substring(9).split(",");
+            if (components.length != 3)
+                return "err:rgb";
+            try {
+                int red = Integer.parseInt(components[0]);
+                int green = Integer.parseInt(components[1]);
+                int blue = Integer.parseInt(components[2]);
+                if (red < 0 || green < 0 || blue < 0 || red > 255 || green > 255 || blue > 255)
+                    return "err:oob";
+                return "lightset:" + red + "," + green + "," + blue;
+            } catch (NumberFormatException e) {
+                return "err:odd";
+            }
+        }
+        if (message.startsWith("volume:"))
+            return legacyLevel("volume", message.substring(7));
+        return "err";
+    }
+
+    private static String legacyLevel(String namespace, String command) {
+        if (command.startsWith("get"))
+            return namespace + ":get";
+        try {
+            int value = Integer.parseInt(command);
+            if (value >= 0 && value <= 255)
+                return namespace + ":" + value;
+            return "err:oob";
+        } catch (NumberFormatException e) {
+            return "err";
+        }
+    }
+
+    private static String legacyIdle(String command) {
+        if (command.startsWith("auto"))
+            return "idle:auto";
+        if (command.startsWith("enter"))
+            return "idle:enter";
+        if (command.startsWith("exit"))
+            return "idle:exit";
+        if (command.startsWith("schedule:")) {
+            String[] times = command.substring(9).split("-");
+            if (times.length == 2) {
+                int startMinute = legacyTime(times[0]);
+                int endMinute = legacyTime(times[1]);
+                if (startMinute >= 0 && endMinute >= 0)
+                    return "idle:schedule:" + startMinute + "-" + endMinute;
+            }
+            return "err:schedule";
+        }
+        return "err";
+    }
+
+    private static int legacyTime(String time) {
+        String[] components = time.split(":");
+        if (components.length != 2)
+            return -1;
+        try {
+            int hours = Integer.parseInt(components[0]);
+            int minutes = Integer.parseInt(components[1]);
+            if (hours < 0 || hours > 23 || minutes < 0 || minutes > 59)
+                return -1;
+            return hours * 60 + minutes;
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+}
@@ -0,0 +1,58 @@
+// Copyright 2024 Peter Beverloo & AnimeCon. All rights reserved.
+// Use of this source code is governed by a MIT license that can be found in the LICENSE file.
+
+package team.animecon.display;
+
+import java.util.Locale;
+
+/**
+ * Micro-benchmark comparing the cost of parsing messages into a `BridgeCommand` with the
+ * startsWith/split grammar that preceded it. The reference's cost includes building its
+ * description, much like the listener it replaced built substrings and split them. Not part of
+ * the test suite, as it has no assertions; run its `main()` by hand, for example from Android
+ * Studio. Results on a desktop JVM only indicate relative cost, as ART's JIT and escape analysis
+ * differ from HotSpot's.
+ */
+public final class CommandParserBenchmark {
+    /**
+     * A realistic mix of messages sent by the Volunteer Manager page.
+     */
+    private static final String[] MESSAGES = new String[] {
+            "lightset:255,128,7", "brightness:128", "light:KEEP:RED:0:128", "kiosk:enable", "ip",
+            "volume:get", "brightness:get", "idle:schedule:02:00-07:00", "light:FLASH:5",
+            "lightset:0,0,0" };
+
+    private static final int ITERATIONS = 2_000_000;
+    private static final int ROUNDS = 5;
+
+    private CommandParserBenchmark() {}
+
+    public static void main(String[] args) {
+        BridgeCommand command = new BridgeCommand();
+        CommandParser parser = new CommandParser();
+        long sink = 0;
+
+        for (int round = 0; round < ROUNDS; ++round) {
+            long legacyStartNs = System.nanoTime();
+            for (int iteration = 0; iteration < ITERATIONS; ++iteration) {
+                String message = MESSAGES[iteration % MESSAGES.length];
+                sink += CommandGrammar.legacy(message).length();
+            }
+            long legacyNs = System.nanoTime() - legacyStartNs;
+
+            long currentStartNs = System.nanoTime();
+            for (int iteration = 0; iteration < ITERATIONS; ++iteration) {
+                String message = MESSAGES[iteration % MESSAGES.length];
+                BridgeCommand.parse(parser, message, command);
+                sink += command.getAction() + command.getInt(0);
+            }
+            long currentNs = System.nanoTime() - currentStartNs;
+
+            System.out.println(String.format(Locale.US,
+                    "round %d: legacy %.1f ns/message, parser %.1f ns/message", round,
+                    legacyNs / (double) ITERATIONS, currentNs / (double) ITERATIONS));
+        }
+
+        System.out.println("(checksum " + sink + ")");
+    }
+}
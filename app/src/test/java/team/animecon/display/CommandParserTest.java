@@ -0,0 +1,256 @@
+// Copyright 2024 Peter Beverloo & AnimeCon. All rights reserved.
+// Use of this source code is governed by a MIT license that can be found in the LICENSE file.
+
+package team.animecon.display;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+/**
+ * Tests for the `CommandParser` and the `BridgeCommand` grammar built on top of it, which is what
+ * `WebMessageListener` executes. The fuzz test compares the grammar against the startsWith/split
+ * dispatch that preceded it, which is kept in `CommandGrammar` as the reference.
+ */
+public class CommandParserTest {
+    /**
+     * Canonical messages, which both grammars must handle identically. Also used as fuzz seeds.
+     */
+    private static final String[] SEEDS = new String[] {
+            "brightness:get", "brightness:0", "brightness:128", "brightness:255", "brightness:256",
+            "idle:auto", "idle:enter", "idle:exit", "idle:schedule:02:00-07:00",
+            "idle:schedule:23:59-00:00", "idle:schedule:24:00-07:00", "ip", "kiosk:enable",
+            "kiosk:disable", "light:open", "light:close", "light:KEEP:RED:0:128", "light:FLASH:5",
+            "lightset:0,0,0", "lightset:255,128,7", "lightset:300,1,1", "volume:get", "volume:42",
+            "volume:999" };
+
+    /**
+     * Characters used to mutate the seeds, including a non-ASCII digit.
+     */
+    private static final String ALPHABET = "0123456789,:-+ abcdegilnoprstvxyzRGBEKP٠";
+
+    private static final int FUZZ_ITERATIONS = 500_000;
+
+    private final BridgeCommand mCommand = new BridgeCommand();
+    private final CommandParser mParser = new CommandParser();
+
+    @Test
+    public void canonicalMessagesMatchTheReference() {
+        for (String message : SEEDS) {
+            assertEquals(message, CommandGrammar.legacy(message),
+                    this.parse(message));
+        }
+    }
+
+    @Test
+    public void previouslyAcceptedMessagesAreNowRejected() {
+        // Namespaces and arguments are matched exactly, rather than by prefix.
+        assertEquals("ip", CommandGrammar.legacy("ipconfig"));
+        assertEquals("err", this.parse("ipconfig"));
+        assertEquals("ip", CommandGrammar.legacy("ip:config"));
+        assertEquals("err", this.parse("ip:config"));
+
+        assertEquals("brightness:get", CommandGrammar.legacy("brightness:get2"));
+        assertEquals("err", this.parse("brightness:get2"));
+
+        // String.split() dropped trailing empty components.
+        assertEquals("lightset:1,2,3", CommandGrammar.legacy("lightset:1,2,3,"));
+        assertEquals("err:rgb", this.parse("lightset:1,2,3,"));
+
+        // Anything but an exact "open" or "close" is passed through to the strip.
+        assertEquals("light:open", CommandGrammar.legacy("light:openX"));
+        assertEquals("light:send:openX", this.parse("light:openX"));
+        assertEquals("light:close", CommandGrammar.legacy("light:closed"));
+        assertEquals("light:send:closed", this.parse("light:closed"));
+    }
+
+    @Test
+    public void fuzzedMessagesNeverCauseNewActions() {
+        Random random = new Random(42);
+        int agreements = 0;
+
+        for (int iteration = 0; iteration < FUZZ_ITERATIONS; ++iteration) {
+            String message = mutate(random, SEEDS[random.nextInt(SEEDS.length)]);
+
+            String expected = CommandGrammar.legacy(message);
+            String actual = this.parse(message);
+            if (expected.equals(actual)) {
+                agreements++;
+                continue;
+            }
+
+            // The parser may be stricter than the reference, but must never perform an action the
+            // reference would not have performed. The one exception is the light passthrough: an
+            // inexact "open" or "close" is now sent to the strip as-is.
+            if (actual.startsWith("err"))
+                continue;
+            if (actual.startsWith("light:send:") &&
+                    (expected.equals("light:open") || expected.equals("light:close"))) {
+                continue;
+            }
+
+            fail("\"" + message + "\": reference " + expected + ", parser " + actual);
+        }
+
+        // Sanity check that the mutations don't only produce garbage.
+        assertTrue(agreements > FUZZ_ITERATIONS / 4);
+    }
+
+    @Test
+    public void commandsCarryTheirArguments() {
+        assertTrue(BridgeCommand.parse(this.mParser,
+                "serial:set:115200:8:even:1:hardware:0:5", this.mCommand));
+        assertEquals(BridgeCommand.ACTION_SERIAL_SET, this.mCommand.getAction());
+        assertEquals(115200, this.mCommand.getInt(0));
+        assertEquals(8, this.mCommand.getInt(1));
+        assertEquals(SerialPortConfig.parityFromName("even"), this.mCommand.getInt(2));
+        assertEquals(1, this.mCommand.getInt(3));
+        assertEquals(SerialPortConfig.flowControlFromName("hardware"), this.mCommand.getInt(4));
+        assertEquals(0, this.mCommand.getInt(5));
+        assertEquals(5, this.mCommand.getInt(6));
+
+        assertTrue(BridgeCommand.parse(this.mParser,
+                "sync:sample:1700000000000:123456:1700000000042", this.mCommand));
+        assertEquals(BridgeCommand.ACTION_SYNC_SAMPLE, this.mCommand.getAction());
+        assertEquals(1700000000000L, this.mCommand.getLong(0));
+        assertEquals(123456L, this.mCommand.getLong(1));
+        assertEquals(1700000000042L, this.mCommand.getLong(2));
+
+        assertTrue(BridgeCommand.parse(
+                this.mParser, "light:at:1700000000000:FLASH:5", this.mCommand));
+        assertEquals(BridgeCommand.ACTION_LIGHT_SCHEDULE, this.mCommand.getAction());
+        assertEquals(1700000000000L, this.mCommand.getLong(0));
+        assertEquals("FLASH:5", this.mCommand.getText());
+
+        assertTrue(BridgeCommand.parse(
+                this.mParser, "brightness:auto:curve:0=10,500=255", this.mCommand));
+        assertEquals(BridgeCommand.ACTION_AUTO_BRIGHTNESS_CURVE, this.mCommand.getAction());
+        assertArrayEquals(new int[] { 0, 500 }, this.mCommand.getCurveLux());
+        assertArrayEquals(new int[] { 10, 255 }, this.mCommand.getCurveLevels());
+
+        assertTrue(BridgeCommand.parse(
+                this.mParser, "replay:bridge-1:0.5:simulated", this.mCommand));
+        assertEquals(BridgeCommand.ACTION_REPLAY_START, this.mCommand.getAction());
+        assertEquals("bridge-1", this.mCommand.getText());
+        assertEquals(0.5, this.mCommand.getSpeed(), 0);
+        assertEquals(1, this.mCommand.getInt(0));
+    }
+
+    @Test
+    public void bridgeCommandsCannotBeScheduled() {
+        String[] messages = new String[] {
+                "light:at:1000:open", "light:at:1000:close", "light:at:1000:status",
+                "light:at:1000:cancel", "light:at:1000:at:2000:FLASH:5" };
+
+        for (String message : messages) {
+            assertFalse(message, BridgeCommand.parse(this.mParser, message, this.mCommand));
+            assertEquals(message,
+                    "error:Invalid light command (only strip commands can be scheduled)",
+                    this.mCommand.getError());
+        }
+
+        assertFalse(BridgeCommand.parse(this.mParser, "light:at:1000:", this.mCommand));
+        assertFalse(BridgeCommand.parse(this.mParser, "light:at:FLASH:5", this.mCommand));
+    }
+
+    @Test
+    public void everyNamespaceResolvesToItsOpcode() {
+        String[] namespaces = new String[] {
+                "brightness", "frames", "idle", "ip", "kiosk", "light", "lightset", "record",
+                "replay", "serial", "sync", "volume", "webview" };
+        int[] opcodes = new int[] {
+                CommandParser.OP_BRIGHTNESS, CommandParser.OP_FRAMES, CommandParser.OP_IDLE,
+                CommandParser.OP_IP, CommandParser.OP_KIOSK, CommandParser.OP_LIGHT,
+                CommandParser.OP_LIGHTSET, CommandParser.OP_RECORD, CommandParser.OP_REPLAY,
+                CommandParser.OP_SERIAL, CommandParser.OP_SYNC, CommandParser.OP_VOLUME,
+                CommandParser.OP_WEBVIEW };
+
+        for (int index = 0; index < namespaces.length; ++index) {
+            String namespace = namespaces[index];
+            assertEquals(namespace, opcodes[index], this.mParser.reset(namespace));
+            assertTrue(namespace, this.mParser.atEnd());
+
+            assertEquals(namespace, opcodes[index], this.mParser.reset(namespace + ":x"));
+            assertTrue(namespace, this.mParser.isRest("x"));
+
+            // Neither prefixes nor extensions of a namespace resolve.
+            assertEquals(CommandParser.OP_INVALID,
+                    this.mParser.reset(namespace.substring(1) + ":x"));
+            assertEquals(CommandParser.OP_INVALID, this.mParser.reset(namespace + "s:x"));
+        }
+
+        assertEquals(CommandParser.OP_INVALID, this.mParser.reset(""));
+        assertEquals(CommandParser.OP_INVALID, this.mParser.reset(":get"));
+        assertEquals(CommandParser.OP_INVALID, this.mParser.reset("lighé:open"));
+    }
+
+    @Test
+    public void parseIntRejectsOverflowWithoutConsuming() {
+        this.mParser.reset("volume:123456789");
+        assertEquals(123456789, this.mParser.parseInt());
+        assertTrue(this.mParser.atEnd());
+
+        this.mParser.reset("volume:1234567890");
+        assertEquals(-1, this.mParser.parseInt());
+        assertTrue(this.mParser.isRest("1234567890"));
+
+        this.mParser.reset("volume:");
+        assertEquals(-1, this.mParser.parseInt());
+
+        this.mParser.reset("volume:+5");
+        assertEquals(-1, this.mParser.parseInt());
+        assertFalse(this.mParser.atEnd());
+    }
+
+    @Test
+    public void tokensAreDelimitedByColons() {
+        this.mParser.reset("replay:bridge-1:max:simulated");
+        assertFalse(this.mParser.consumeToken("bridge"));
+        assertEquals("bridge-1", this.mParser.nextToken());
+        assertTrue(this.mParser.consumeToken("max"));
+        assertTrue(this.mParser.isRest("simulated"));
+        assertTrue(this.mParser.atEnd());
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Parses the `message` as the `WebMessageListener` would, and describes the resulting action.
+     */
+    private String parse(String message) {
+        BridgeCommand.parse(this.mParser, message, this.mCommand);
+        return CommandGrammar.describe(this.mCommand);
+    }
+
+    /**
+     * Applies up to three random insertions, deletions or replacements to the `seed`.
+     */
+    static String mutate(Random random, String seed) {
+        StringBuilder builder = new StringBuilder(seed);
+
+        int mutations = random.nextInt(4);
+        for (int mutation = 0; mutation < mutations; ++mutation) {
+            int operation = random.nextInt(3);
+            int position = random.nextInt(builder.length() + 1);
+            char character = ALPHABET.charAt(random.nextInt(ALPHABET.length()));
+
+            if (operation == 0) {
+                builder.insert(position, character);
+            } else if (builder.length() == 0) {
+                continue;
+            } else if (operation == 1) {
+                builder.deleteCharAt(Math.min(position, builder.length() - 1));
+            } else {
+                builder.setCharAt(Math.min(position, builder.length() - 1), character);
+            }
+        }
+
+        return builder.toString();
+    }
+}